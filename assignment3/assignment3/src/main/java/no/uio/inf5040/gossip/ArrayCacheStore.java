@@ -0,0 +1,126 @@
+package no.uio.inf5040.gossip;
+
+import java.util.Arrays;
+
+/**
+ * Cache store keeping every slot in a few contiguous int arrays, in
+ * structure-of-arrays layout: the neighbors of slot s are at
+ * [s * cacheSize, (s + 1) * cacheSize) of one array, their exchange tags at
+ * the same positions of another, and so on.
+ * 
+ * A store with a single slot is the private cache of one node; a store
+ * shared by all the nodes puts the whole overlay in a handful of arrays,
+ * which can be scanned without touching any per-node object. Table entries
+ * are cache positions, so they are kept as chars to halve their footprint.
+ * Since every array is indexed by an int, a store holds at most about
+ * 2^31 / (2 * cacheSize) slots.
+ *
+ */
+public class ArrayCacheStore extends CacheStore {
+
+	private int[] neighbors;
+	private int[] sentIn;
+	private int[] sent;
+	private char[] table;
+	private int[] degrees;
+
+	private int slots;
+
+	/**
+	 * @param cacheSize the maximum size of each cache
+	 * @param shuffleLength the maximum length of a shuffle exchange
+	 * @param capacity the number of slots to allocate room for, the arrays
+	 * grow if more are needed
+	 */
+	public ArrayCacheStore(int cacheSize, int shuffleLength, int capacity)
+	{
+		super(cacheSize, shuffleLength);
+		if(cacheSize >= Character.MAX_VALUE){
+			throw new IllegalArgumentException("Cache size " + cacheSize + " is too large");
+		}
+		capacity = checkCapacity(Math.max(capacity, 1));
+		neighbors = new int[capacity * cacheSize];
+		sentIn = new int[capacity * cacheSize];
+		sent = new int[capacity * shuffleLength];
+		table = new char[capacity * tableSize];
+		degrees = new int[capacity];
+		slots = 0;
+	}
+
+	public int allocate() {
+		if(slots == degrees.length){
+			int capacity = checkCapacity((int) Math.min(Integer.MAX_VALUE,
+					degrees.length + (degrees.length >> 1) + 1L));
+			neighbors = Arrays.copyOf(neighbors, capacity * cacheSize);
+			sentIn = Arrays.copyOf(sentIn, capacity * cacheSize);
+			sent = Arrays.copyOf(sent, capacity * shuffleLength);
+			table = Arrays.copyOf(table, capacity * tableSize);
+			degrees = Arrays.copyOf(degrees, capacity);
+		}
+		return slots++;
+	}
+
+	/**
+	 * @return the capacity, if all the arrays can be indexed with it
+	 */
+	private int checkCapacity(int capacity) {
+		if((long) capacity * tableSize > Integer.MAX_VALUE){
+			throw new IllegalStateException("Cannot hold " + capacity
+					+ " caches of size " + cacheSize + " in arrays");
+		}
+		return capacity;
+	}
+
+	public int slots() {
+		return slots;
+	}
+
+	public int degree(int slot) {
+		return degrees[slot];
+	}
+
+	public int getNeighbor(int slot, int i) {
+		return neighbors[slot * cacheSize + i];
+	}
+
+	public int getSentIn(int slot, int i) {
+		return sentIn[slot * cacheSize + i];
+	}
+
+	public void setSentIn(int slot, int i, int exchange) {
+		sentIn[slot * cacheSize + i] = exchange;
+	}
+
+	public int getSent(int slot, int i) {
+		return sent[slot * shuffleLength + i];
+	}
+
+	public void setSent(int slot, int i, int index) {
+		sent[slot * shuffleLength + i] = index;
+	}
+
+	public long heapBytesPerSlot() {
+		return 4 + 8L * cacheSize + 4L * shuffleLength + 2L * tableSize;
+	}
+
+	public long offHeapBytesPerSlot() {
+		return 0;
+	}
+
+	protected void setDegree(int slot, int degree) {
+		degrees[slot] = degree;
+	}
+
+	protected void setNeighbor(int slot, int i, int index) {
+		neighbors[slot * cacheSize + i] = index;
+	}
+
+	protected int getTable(int slot, int i) {
+		return table[slot * tableSize + i];
+	}
+
+	protected void setTable(int slot, int i, int value) {
+		table[slot * tableSize + i] = (char) value;
+	}
+
+}
@@ -1,14 +1,13 @@
 package no.uio.inf5040.gossip;
 
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.ListIterator;
-import java.util.Queue;
+import java.io.IOException;
+import java.util.Random;
 
 import peersim.cdsim.CDProtocol;
 import peersim.config.Configuration;
+import peersim.config.IllegalParameterException;
 import peersim.core.Linkable;
+import peersim.core.Network;
 import peersim.core.Node;
 import peersim.edsim.EDProtocol;
 import peersim.transport.Transport;
@@ -30,12 +29,58 @@ import peersim.core.CommonState;
  * 
  * This class is a template with instructions of how to implement the shuffling
  * algorithm in PeerSim.
- * Should make use of the classes Entry and GossipMessage:
- *    Entry - Is an entry in the cache, contains a reference to a neighbor node
- *  		  and a reference to the last node this entry was sent to.
+ * Should make use of the class GossipMessage:
  *    GossipMessage - The message used by the protocol. It can be a shuffle
- *    		  request, reply or reject message. It contains the originating
- *    		  node and the shuffle list.
+ *    		  request, reply or reject message. It contains the network
+ *    		  index of the originating node and the shuffle list, as an
+ *    		  array of network indices.
+ *
+ * Messages are taken from a MessagePool, and given back to it once
+ * processEvent has handled them, so an exchange allocates no message once
+ * the simulation is under way.
+ *
+ * The cache does not hold objects per neighbor either. Neighbors are kept as
+ * network indices in a CacheStore, together with the exchange each entry was
+ * last sent in, so a node's cache costs a few small arrays instead of
+ * cacheSize objects. Every exchange gets a new tag, so forgetting what was
+ * sent only means moving on to the next tag, and the entries sent to P are
+ * found through the list of neighbors sent rather than by a scan. Membership
+ * is answered by a small open-addressing table that maps a neighbor to its
+ * position in the cache, so contains, addNeighbor and updateCache never scan
+ * the cache. Subsets are drawn with a partial Fisher-Yates shuffle over a
+ * scratch buffer.
+ * 
+ * The random stream, the scratch buffer and the message pool are those of
+ * the ShuffleContext entered by the calling thread, which the engines
+ * running nodes on several threads give each of their threads. The
+ * CommonState.r stream and the buffer and pool that all the instances
+ * share are only used when no ShuffleContext is entered, that is by the
+ * single-threaded PeerSim engines.
+ * 
+ * With the parameter store set to "local", the default, each node owns a
+ * store with a single slot. With "global", all the nodes share one
+ * ArrayCacheStore sized for network.size, and the observers can scan the
+ * whole overlay from its arrays. With "direct", the shared store is a
+ * DirectCacheStore outside the Java heap, memory-mapped to the file given by
+ * the parameter file when it is set. The footprint of the stores per node
+ * is reported by StoreObserver.
+ * 
+ * With the parameter track set, every neighbor added to or removed from a
+ * cache is reported to an InDegreeTracker shared by all the nodes, which
+ * InDegreeObserver then reads instead of counting the caches.
+ * 
+ * With the parameter pipeline set to K, a node does not wait for the reply
+ * to its request before the next one: it may have up to K exchanges in
+ * flight, and serves the requests that come meanwhile instead of rejecting
+ * them. Every exchange has its own list of the neighbors sent, and its tag
+ * goes with the request and comes back with the reply, which is merged
+ * with the entries of that exchange only. An entry sent again in a later
+ * exchange takes the tag of that one, so it is replaced at most once, by
+ * the last exchange it was sent in. The requests served use a list of
+ * their own, which is only needed while the reply is built. With the
+ * default of 0, the protocol is the original one. The rejections received
+ * and the exchanges completed by every node are counted, see
+ * ExchangeObserver.
  *
  */
 public class BasicShuffle implements Linkable, EDProtocol, CDProtocol{
@@ -43,11 +88,61 @@ public class BasicShuffle implements Linkable, EDProtocol, CDProtocol{
 	private static final String PAR_CACHE = "cacheSize";
 	private static final String PAR_L = "shuffleLength";
 	private static final String PAR_TRANSPORT = "transport";
+	private static final String PAR_STORE = "store";
+	private static final String PAR_FILE = "file";
+	private static final String PAR_TRACK = "track";
+	private static final String PAR_PIPELINE = "pipeline";
+
+	// Position returned for a node that is not in the cache.
+	private static final int NONE = CacheStore.NONE;
+	
+	// The fields of an exchange in flight, and their number.
+	private static final int TAG = 0;
+	private static final int PEER = 1;
+	private static final int COUNT = 2;
+	private static final int FIELDS = 3;
 
 	private final int tid;
 
-	// The list of neighbors known by this node, or the cache.
-	private List<Entry> cache;
+	// Whether all the nodes share one store.
+	private final boolean global;
+
+	// The store holding the cache of this node, or the neighbors it knows.
+	private CacheStore store;
+	
+	// The slot of this node in the store.
+	private int slot;
+	
+	// The in-degrees of all the nodes, or null when they are not tracked.
+	private final InDegreeTracker tracker;
+	
+	// The tag of the current, or last, exchange of this node.
+	private int exchange;
+	
+	// The number of neighbors sent in the current exchange.
+	private int sentCount;
+	
+	// The number of exchanges a node may have in flight, 0 for the original
+	// protocol.
+	private final int pipeline;
+	
+	// With pipeline set, the tag, the node it is with or NONE when free, and
+	// the number of neighbors sent of every exchange of this node, the last
+	// one for the requests it serves; null otherwise.
+	private int[] exchanges;
+	
+	// The number of exchanges in flight.
+	private int inFlight;
+	
+	// The rejections received and the exchanges completed by this node.
+	private int rejected;
+	private int completed;
+	
+	// Cache positions to draw subsets from, shared by all the clones.
+	private final int[] scratch;
+	
+	// The messages no longer in use, shared by all the clones.
+	private final MessagePool pool;
 	
 	// The maximum size of the cache;
 	private final int size;
@@ -68,11 +163,71 @@ public class BasicShuffle implements Linkable, EDProtocol, CDProtocol{
 	{	
 		this.size = Configuration.getInt(n + "." + PAR_CACHE);
 		this.l = Configuration.getInt(n + "." + PAR_L);
-		this.tid = Configuration.getPid(n + "." + PAR_TRANSPORT);
-		cache = new ArrayList<Entry>(size);
+		this.tid = Configuration.getPid(n + "." + PAR_TRANSPORT, NONE);
+		this.pipeline = Configuration.getInt(n + "." + PAR_PIPELINE, 0);
+		if(pipeline < 0){
+			throw new IllegalParameterException(n + "." + PAR_PIPELINE, "Must not be negative");
+		}
+		String mode = Configuration.getString(n + "." + PAR_STORE, "local");
+		if(mode.equals("local")){
+			global = false;
+			store = new ArrayCacheStore(size, sentLength(), 1);
+			slot = store.allocate();
+		}else{
+			global = true;
+			store = createStore(n, mode);
+			slot = NONE;
+		}
+		tracker = Configuration.getBoolean(n + "." + PAR_TRACK, false)
+				? new InDegreeTracker(Configuration.getInt("network.size", 1)) : null;
+		scratch = new int[size];
+		pool = new MessagePool(l);
+		exchanges = pipeline == 0 ? null : newExchanges();
 		waitForReply = false;
 	}
 
+	/**
+	 * Creates the store shared by all the nodes.
+	 */
+	private CacheStore createStore(String n, String mode)
+	{
+		int capacity = Configuration.getInt("network.size", 1);
+		if(mode.equals("global")){
+			return new ArrayCacheStore(size, sentLength(), capacity);
+		}else if(mode.equals("direct")){
+			String file = Configuration.getString(n + "." + PAR_FILE, null);
+			try {
+				return new DirectCacheStore(size, sentLength(), capacity, file);
+			} catch (IOException e) {
+				throw new IllegalParameterException(n + "." + PAR_FILE,
+						"Cannot open " + file + ": " + e.getMessage());
+			}
+		}
+		throw new IllegalParameterException(n + "." + PAR_STORE,
+				"Unknown store " + mode + ", use local, global or direct");
+	}
+	
+	/**
+	 * @return the length of the list of neighbors sent of a slot, enough
+	 * for every exchange of a node
+	 */
+	private int sentLength()
+	{
+		return pipeline == 0 ? l : l * (pipeline + 1);
+	}
+	
+	/**
+	 * @return the exchanges of a node with several in flight, all free
+	 */
+	private int[] newExchanges()
+	{
+		int[] e = new int[(pipeline + 1) * FIELDS];
+		for(int i = 0; i < pipeline + 1; i++){
+			e[i * FIELDS + PEER] = NONE;
+		}
+		return e;
+	}
+
 	/* START YOUR IMPLEMENTATION FROM HERE
 	 * 
 	 * The simulator engine calls the method nextCycle once every cycle 
@@ -85,31 +240,22 @@ public class BasicShuffle implements Linkable, EDProtocol, CDProtocol{
 	
 	public void nextCycle(Node node, int protocolID) {
 		// 1. If P is waiting for a response from a shuffling operation initiated in a previous cycle, return;
-		if(waitForReply){
+		if(waitForReply || inFlight == pipeline && exchanges != null){
 			return;
 		}
 		// 2. If P's cache is empty, return;	
-		else if(cache.isEmpty()){
+		int pos = selectNeighbor();
+		if(pos == NONE){
 			return;
 		}	
-			//3. Select a random neighbor (named Q) from P's cache to initiate the shuffling;
-		Entry q = cache.get(CommonState.r.nextInt(cache.size()));
-		// 4. If P's cache is full, remove Q from the cache;
-		if(cache.size()>=size){
-			cache.remove(q);
-		}
-		// 5. Select a subset of other l - 1 random neighbors from P's cache;
-		//lastSentSubset = null;
-		//lastSentSubset = 
-		// 6. Add P to the subset;
-		//lastSentSubset.add(new Entry(node));
+		int q = store.getNeighbor(slot, pos);
+		GossipMessage message = request(node, pos, exchanges == null ? 0 : open(q));
 		// 7. Send a shuffle request to Q containing the subset;
-		GossipMessage message = new GossipMessage(node, generateSubset(l-1, q.getNode()));
-		message.setType(MessageType.SHUFFLE_REQUEST);
 		Transport tr = (Transport) node.getProtocol(tid);
-		tr.send(node, q.getNode(), message, protocolID);
+		tr.send(node, Network.get(q), message, protocolID);
 		// 8. From this point on P is waiting for Q's response and will not initiate a new shuffle operation;
-		waitForReply = true;
+		// unless it may have several exchanges in flight
+		waitForReply = exchanges == null;
 		
 	}
 
@@ -126,50 +272,47 @@ public class BasicShuffle implements Linkable, EDProtocol, CDProtocol{
 		// Q receives a message from P;
 		//	  - Cast the event object to a message:
 		GossipMessage message = (GossipMessage) event;
-		Node p = message.getNode();
+		Node p = Network.get(message.getSender());
 		Node q = node;
 	
 		switch (message.getType()) {
 			case SHUFFLE_REQUEST:
 //				  1. If Q is waiting for a response from a shuffling initiated in a previous cycle, send back to P a message rejecting the shuffle request; 
 				if(waitForReply){
-					GossipMessage reject = new GossipMessage(node, null);
-					reject.setType(MessageType.SHUFFLE_REJECTED);
+					GossipMessage reject = pool().acquire(MessageType.SHUFFLE_REJECTED, node.getIndex());
 					Transport tr = (Transport) node.getProtocol(tid);
 					tr.send(q, p, reject, pid);
-					return;
+					break;
 				}
-//				  2. Q selects a random subset of size l of its own neighbors;
-//				lastSentSubset = null;
-//				lastSentSubset = generateSubset(l, p);
 				//	  3. Q reply P's shuffle request by sending back its own subset;
-				GossipMessage reply = new GossipMessage(q, generateSubset(l,p));
-				reply.setType(MessageType.SHUFFLE_REPLY);
+				GossipMessage reply = reply(q, message);
 				Transport tr = (Transport) q.getProtocol(tid);
 				tr.send(q, p, reply, pid);
-				//  4. Q updates its cache to include the neighbors sent by P:
-				updateCache(message);
-				//updateCache(p,message.getShuffleList());
 				break;		
 			case SHUFFLE_REPLY:
-				//	  2. Q updates its cache to include the neighbors sent by P:
-				updateCache(message);
-				for (Entry entry : cache) {
-					entry.setSentTo(null);
-				}
-				if(!contains(p)&&cache.size()<size){
-					cache.add(new Entry(p));
+				if(exchanges == null){
+					complete(node, message, 0);
+				}else{
+					// The reply of an exchange no longer in flight is dropped
+					int e = find(message);
+					if(e != NONE){
+						complete(node, message, e);
+						close(e);
+					}
 				}
 				//	 3. Q is no longer waiting for a shuffle reply;	 
 				waitForReply = false;
 				break;
 			case SHUFFLE_REJECTED:
-				for (Entry entry : cache) {
-					entry.setSentTo(null);
-				}
-				
-				if(!contains(p)&&cache.size()<size){
-					cache.add(new Entry(p));
+				if(exchanges == null){
+					abort(p);
+				}else{
+					// So is the rejection of an exchange no longer in flight
+					int e = find(message);
+					if(e != NONE){
+						abort(p);
+						close(e);
+					}
 				}
 				waitForReply = false;
 				break;
@@ -177,82 +320,346 @@ public class BasicShuffle implements Linkable, EDProtocol, CDProtocol{
 			default:
 				break;
 		}
+		// The message is handled, and no longer referenced by anyone
+		pool().release(message);
+	}
+	/**
+	 * Runs a whole exchange with the neighbor at the given position, as if
+	 * the request and the reply were delivered instantly. This is meant for
+	 * engines that pair the nodes of a cycle themselves, and must only run
+	 * concurrently with exchanges involving neither of the two nodes.
+	 * @param node the node running this protocol, P
+	 * @param pos the position of Q in the cache, from selectNeighbor
+	 * @param pid the identifier of this protocol
+	 */
+	public void exchange(Node node, int pos, int pid){
+		Node q = Network.get(store.getNeighbor(slot, pos));
+		// The exchange is over before any other starts, it needs none in flight
+		int e = exchanges == null ? 0 : pipeline;
+		GossipMessage request = request(node, pos, e);
+		GossipMessage reply = ((BasicShuffle) q.getProtocol(pid)).reply(q, request);
+		complete(node, reply, e);
+		MessagePool pool = pool();
+		pool.release(request);
+		pool.release(reply);
+	}
+	
+	/**
+	 * Selects a random neighbor (named Q) to initiate a shuffling with.
+	 * @return the position of Q in the cache, or NONE if the cache is empty
+	 */
+	public int selectNeighbor(){
+		int degree = store.degree(slot);
+		if(degree == 0){
+			return NONE;
+		}
+		//3. Select a random neighbor (named Q) from P's cache to initiate the shuffling;
+		return random().nextInt(degree);
+	}
+	
+	/**
+	 * Builds the request of P for the neighbor at the given position.
+	 * @param e the exchange of P the request starts
+	 */
+	private GossipMessage request(Node node, int pos, int e){
+		int q = store.getNeighbor(slot, pos);
+		// 4. If P's cache is full, remove Q from the cache;
+		if(store.degree(slot)>=size){
+			remove(pos);
+		}
+		// 5. Select a subset of other l - 1 random neighbors from P's cache;
+		GossipMessage message = pool().acquire(MessageType.SHUFFLE_REQUEST, node.getIndex());
+		generateSubset(message, l-1, q, e);
+		if(exchanges != null){
+			message.setExchange(exchange);
+		}
+		// 6. Add P to the subset;
+		message.add(node.getIndex());
+		return message;
+	}
+	
+	/**
+	 * Serves the request of P and builds the reply of Q.
+	 */
+	private GossipMessage reply(Node node, GossipMessage request){
+		//	  2. Q selects a random subset of size l of its own neighbors;
+		// The exchange for the requests served, which ends here
+		int e = exchanges == null ? 0 : pipeline;
+		GossipMessage reply = pool().acquire(MessageType.SHUFFLE_REPLY, node.getIndex());
+		generateSubset(reply, l, request.getSender(), e);
+		reply.setExchange(request.getExchange());
+		//  4. Q updates its cache to include the neighbors sent by P:
+		updateCache(node, request, e);
+		return reply;
 	}
+	
+	/**
+	 * Handles the reply of Q to the request of P.
+	 * @param e the exchange of P the reply ends
+	 */
+	private void complete(Node node, GossipMessage reply, int e){
+		//	  2. P updates its cache to include the neighbors sent by Q:
+		updateCache(node, reply, e);
+		completed++;
+		exchange++;
+		addNeighbor(Network.get(reply.getSender()));
+	}
+
 	/**
-	 * Generates a random subset from the cache.  
-	 * @param src
-	 * @param dest
-	 * @return
+	 * Handles the rejection by Q of the request of P, which takes Q back.
 	 */
-	private LinkedList<Entry> generateSubset(Integer length, Node dest){
-		LinkedList<Entry> subset = new LinkedList<Entry>();
-		List<Entry> copyOfCache = new ArrayList<Entry>(cache);
-		copyOfCache.remove(dest);
-		for(int i =0; i<length && !copyOfCache.isEmpty(); i++){
-			Entry neighbor = copyOfCache.remove(CommonState.r.nextInt(copyOfCache.size()));
-			neighbor.setSentTo(dest);
-			subset.add(new Entry(neighbor.getNode()));
+	private void abort(Node q){
+		rejected++;
+		exchange++;
+		addNeighbor(q);
+	}
+	
+	/**
+	 * Adds a neighbor to the cache, which must not be full.
+	 */
+	private void add(int index){
+		store.add(slot, index);
+		if(tracker != null){
+			tracker.increment(index);
+		}
+	}
+	
+	/**
+	 * Removes the neighbor at the given position from the cache.
+	 */
+	private void remove(int pos){
+		int index = store.getNeighbor(slot, pos);
+		store.removeAt(slot, pos);
+		if(tracker != null){
+			tracker.decrement(index);
+		}
+	}
+	
+	/**
+	 * Replaces the neighbor at the given position in the cache.
+	 */
+	private void replace(int pos, int index){
+		int old = store.getNeighbor(slot, pos);
+		store.replaceAt(slot, pos, index);
+		if(tracker != null){
+			tracker.decrement(old);
+			tracker.increment(index);
+		}
+	}
+	
+	/**
+	 * Generates a random subset from the cache and writes it into the
+	 * shuffle list of the message. The destination itself is never part of
+	 * the subset. This starts a new exchange, and every selected entry is
+	 * tagged with it and remembered as sent.
+	 * 
+	 * The first length positions of a shuffle of the candidates are drawn
+	 * in place in the scratch buffer, so one random number is drawn per
+	 * selected entry, from the same ranges as removing candidates one by one.
+	 * @param message the message to fill
+	 * @param length the maximum size of the subset
+	 * @param dest the network index of the node the subset is sent to
+	 * @param e the exchange of the node the subset is sent in
+	 */
+	private void generateSubset(GossipMessage message, int length, int dest, int e){
+		exchange++;
+		int count = 0;
+		Random random = random();
+		int[] scratch = scratch();
+		int n = store.degree(slot);
+		for(int i = 0; i < n; i++){
+			scratch[i] = i;
+		}
+		int excluded = store.indexOf(slot, dest);
+		if(excluded != NONE){
+			n--;
+			scratch[excluded] = n;
+		}
+		for(int i = 0; i < length && i < n; i++){
+			int j = i + random.nextInt(n - i);
+			int pos = scratch[j];
+			scratch[j] = scratch[i];
+			int index = store.getNeighbor(slot, pos);
+			store.setSentIn(slot, pos, exchange);
+			store.setSent(slot, e * l + count++, index);
+			message.add(index);
+		}
+		if(exchanges == null){
+			sentCount = count;
+		}else{
+			exchanges[e * FIELDS + TAG] = exchange;
+			exchanges[e * FIELDS + COUNT] = count;
 		}
-		return subset;
 	}
 	/**
 	 * Updates the cache based on these rules: 
 	 *  - No neighbor appears twice in the cache
 	 *  - Use empty cache slots to add the new entries
 	 *  - If the cache is full, you can replace entries among the ones sent to P with the new ones
+	 * 
+	 * The entries sent to P are the ones in the list of sent neighbors that
+	 * are still in the cache with the tag of the exchange.
+	 * @param node the node running this protocol
 	 * @param message
+	 * @param e the exchange of the node the message belongs to
 	 */
-	private void updateCache(GossipMessage message){
-		ArrayList<Entry> recievedNeighbors = (ArrayList<Entry>) message.getShuffleList();
-		LinkedList<Entry> lastSentNodes = new LinkedList<Entry>();
-		
-		for(Entry e: cache){
-			if(e.getSentTo()!=null){
-				if(e.getSentTo().equals(message.getNode())){
-					lastSentNodes.add(e);
-				}
-			}
-		}
+	private void updateCache(Node node, GossipMessage message, int e){
+		int self = node.getIndex();
+		// The next neighbor sent to P that may still be replaced.
+		int next = 0;
+		int tag = exchanges == null ? exchange : exchanges[e * FIELDS + TAG];
+		int count = exchanges == null ? sentCount : exchanges[e * FIELDS + COUNT];
 		
-		for(Entry neighbor : recievedNeighbors){
+		for(int i = 0; i < message.size(); i++){
+			int index = message.get(i);
 			//First we must check if the node is in the list
-			if(!contains(neighbor.getNode())){
-				if(cache.size()<size){
-					cache.add(neighbor);
-				}else{
-					if(!lastSentNodes.isEmpty()){
-						cache.remove(lastSentNodes.removeFirst());
-						cache.add(neighbor);
+			if(index == self || store.indexOf(slot, index) != NONE){
+				continue;
+			}
+			if(store.degree(slot)<size){
+				add(index);
+			}else{
+				int pos = NONE;
+				while(pos == NONE && next < count){
+					pos = store.indexOf(slot, store.getSent(slot, e * l + next++));
+					if(pos != NONE && store.getSentIn(slot, pos) != tag){
+						pos = NONE;
 					}
 				}
+				if(pos != NONE){
+					replace(pos, index);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Starts an exchange with the given node, there must be one free.
+	 * @return the exchange
+	 */
+	private int open(int q){
+		int e = 0;
+		while(exchanges[e * FIELDS + PEER] != NONE){
+			e++;
+		}
+		exchanges[e * FIELDS + PEER] = q;
+		inFlight++;
+		return e;
+	}
+	
+	/**
+	 * Ends an exchange in flight.
+	 */
+	private void close(int e){
+		exchanges[e * FIELDS + PEER] = NONE;
+		inFlight--;
+	}
+	
+	/**
+	 * @return the exchange in flight the reply or rejection belongs to, or
+	 * NONE if there is none
+	 */
+	private int find(GossipMessage message){
+		for(int e = 0; e < pipeline; e++){
+			if(exchanges[e * FIELDS + PEER] == message.getSender()
+					&& exchanges[e * FIELDS + TAG] == message.getExchange()){
+				return e;
 			}
 		}
+		return NONE;
+	}
+	
+	/**
+	 * @return the random stream of the current thread
+	 */
+	private Random random(){
+		ShuffleContext context = ShuffleContext.current();
+		return context == null ? CommonState.r : context.getRandom();
+	}
+	
+	/**
+	 * @return the scratch buffer of the current thread
+	 */
+	private int[] scratch(){
+		ShuffleContext context = ShuffleContext.current();
+		return context == null ? scratch : context.getScratch(size);
+	}
+	
+	/**
+	 * @return the pool of messages of the current thread
+	 */
+	private MessagePool pool(){
+		ShuffleContext context = ShuffleContext.current();
+		return context == null ? pool : context.getPool(l);
+	}
+	
+	/**
+	 * @return the store holding the cache of this node
+	 */
+	public CacheStore getStore() {
+		return store;
+	}
+	
+	/**
+	 * @return the slot of this node in its store
+	 */
+	public int getSlot() {
+		return slot;
+	}
+	
+	/**
+	 * @return the number of exchanges a node may have in flight, 0 for the
+	 * original protocol
+	 */
+	public int getPipeline() {
+		return pipeline;
+	}
+	
+	/**
+	 * @return the number of rejections this node received
+	 */
+	public int getRejected() {
+		return rejected;
+	}
+	
+	/**
+	 * @return the number of exchanges this node completed
+	 */
+	public int getCompleted() {
+		return completed;
+	}
+	
+	/**
+	 * @return the in-degrees of all the nodes, or null when they are not
+	 * tracked
+	 */
+	public InDegreeTracker getTracker() {
+		return tracker;
 	}
 	
 /* The following methods are used only by the simulator and don't need to be changed */
 	
 	public int degree() {
-		return cache.size();
+		return store.degree(slot);
 	}
 
 	public Node getNeighbor(int i) {
-		return cache.get(i).getNode();
+		return Network.get(store.getNeighbor(slot, i));
 	}
 
 	public boolean addNeighbor(Node neighbour) {
 		if (contains(neighbour)){
 			return false;
 		}
-		if (cache.size() >= size){
+		if (store.degree(slot) >= size){
 			return false;
 		}
-		Entry entry = new Entry(neighbour);
-		cache.add(entry);
+		add(neighbour.getIndex());
 		return true;
 	}
 	
 	public boolean contains(Node neighbor) {
-		return cache.contains(new Entry(neighbor));
+		return store.indexOf(slot, neighbor.getIndex()) != NONE;
 	}
 
 	public Object clone()
@@ -263,7 +670,16 @@ public class BasicShuffle implements Linkable, EDProtocol, CDProtocol{
 		} catch( CloneNotSupportedException e ) {
 			
 		} 
-		gossip.cache = new ArrayList<Entry>();
+		if(!global){
+			gossip.store = new ArrayCacheStore(size, sentLength(), 1);
+		}
+		if(exchanges != null){
+			gossip.exchanges = newExchanges();
+		}
+		gossip.slot = gossip.store.allocate();
+		if(tracker != null){
+			tracker.register();
+		}
 
 		return gossip;
 	}
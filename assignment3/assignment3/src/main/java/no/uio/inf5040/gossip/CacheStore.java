@@ -0,0 +1,185 @@
+package no.uio.inf5040.gossip;
+
+/**
+ * Storage for the caches of the shuffle protocol.
+ * 
+ * A store holds any number of caches, each one addressed by a slot number.
+ * For every slot it keeps the neighbors as network indices, the tag of the
+ * exchange each neighbor was last sent in, the neighbors sent in the current
+ * exchange, and an open-addressing table mapping a neighbor to its position
+ * in the cache. Subclasses only decide where these integers live; the cache
+ * operations themselves are implemented here once.
+ *
+ */
+public abstract class CacheStore {
+
+	// Position returned for a node that is not in the cache.
+	public static final int NONE = -1;
+
+	// The maximum size of each cache.
+	protected final int cacheSize;
+
+	// The maximum length of a shuffle exchange.
+	protected final int shuffleLength;
+
+	// The number of bits used to address the table of each slot.
+	protected final int bits;
+
+	// The number of entries in the table of each slot.
+	protected final int tableSize;
+
+	protected CacheStore(int cacheSize, int shuffleLength)
+	{
+		this.cacheSize = cacheSize;
+		this.shuffleLength = shuffleLength;
+		this.bits = 32 - Integer.numberOfLeadingZeros(Math.max(2 * cacheSize - 1, 1));
+		this.tableSize = 1 << bits;
+	}
+
+	/**
+	 * Reserves storage for a new, empty cache.
+	 * @return the slot of the new cache
+	 */
+	public abstract int allocate();
+
+	/**
+	 * @return the number of slots allocated so far
+	 */
+	public abstract int slots();
+
+	/**
+	 * @return the number of neighbors in the cache of the given slot
+	 */
+	public abstract int degree(int slot);
+
+	/**
+	 * @return the network index of the i-th neighbor of the given slot
+	 */
+	public abstract int getNeighbor(int slot, int i);
+
+	/**
+	 * @return the tag of the exchange the i-th neighbor was last sent in,
+	 * 0 if it was never sent
+	 */
+	public abstract int getSentIn(int slot, int i);
+
+	public abstract void setSentIn(int slot, int i, int exchange);
+
+	/**
+	 * @return the i-th neighbor sent in the current exchange of the slot
+	 */
+	public abstract int getSent(int slot, int i);
+
+	public abstract void setSent(int slot, int i, int index);
+
+	protected abstract void setDegree(int slot, int degree);
+
+	protected abstract void setNeighbor(int slot, int i, int index);
+
+	protected abstract int getTable(int slot, int i);
+
+	protected abstract void setTable(int slot, int i, int value);
+
+	/**
+	 * @return the number of bytes each slot takes in the Java heap
+	 */
+	public abstract long heapBytesPerSlot();
+
+	/**
+	 * @return the number of bytes each slot takes outside the Java heap
+	 */
+	public abstract long offHeapBytesPerSlot();
+
+	public int getCacheSize() {
+		return cacheSize;
+	}
+
+	/**
+	 * @return the position of the given network index in the cache, or
+	 * NONE if it is not a neighbor
+	 */
+	public int indexOf(int slot, int index){
+		return getTable(slot, slotOf(slot, index)) - 1;
+	}
+
+	/**
+	 * Appends a neighbor to the cache, which must not be full nor contain it.
+	 */
+	public void add(int slot, int index){
+		int degree = degree(slot);
+		setNeighbor(slot, degree, index);
+		setSentIn(slot, degree, 0);
+		setTable(slot, slotOf(slot, index), degree + 1);
+		setDegree(slot, degree + 1);
+	}
+
+	/**
+	 * Removes the entry at the given position by moving the last entry
+	 * into its place.
+	 */
+	public void removeAt(int slot, int pos){
+		unlink(slot, pos);
+		int degree = degree(slot) - 1;
+		setDegree(slot, degree);
+		if(pos < degree){
+			int last = getNeighbor(slot, degree);
+			setNeighbor(slot, pos, last);
+			setSentIn(slot, pos, getSentIn(slot, degree));
+			setTable(slot, slotOf(slot, last), pos + 1);
+		}
+	}
+
+	/**
+	 * Replaces the entry at the given position with a new neighbor.
+	 */
+	public void replaceAt(int slot, int pos, int index){
+		unlink(slot, pos);
+		setNeighbor(slot, pos, index);
+		setSentIn(slot, pos, 0);
+		setTable(slot, slotOf(slot, index), pos + 1);
+	}
+
+	/**
+	 * @return the table entry holding the given network index, or the empty
+	 * entry where it would be inserted
+	 */
+	private int slotOf(int slot, int index){
+		int mask = tableSize - 1;
+		int i = hash(index);
+		int pos;
+		while((pos = getTable(slot, i)) != 0 && getNeighbor(slot, pos - 1) != index){
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	private int hash(int index){
+		return (index * 0x9E3779B9) >>> (32 - bits);
+	}
+
+	/**
+	 * Removes the entry at the given position from the table, shifting
+	 * back the entries of its probe sequence so that no tombstones are needed.
+	 */
+	private void unlink(int slot, int pos){
+		int mask = tableSize - 1;
+		int hole = slotOf(slot, getNeighbor(slot, pos));
+		int i = hole;
+		while(true){
+			i = (i + 1) & mask;
+			int entry = getTable(slot, i);
+			if(entry == 0){
+				break;
+			}
+			int home = hash(getNeighbor(slot, entry - 1));
+			// Entries whose home lies cyclically in (hole, i] must stay put
+			if(hole <= i ? (hole < home && home <= i) : (hole < home || home <= i)){
+				continue;
+			}
+			setTable(slot, hole, entry);
+			hole = i;
+		}
+		setTable(slot, hole, 0);
+	}
+
+}
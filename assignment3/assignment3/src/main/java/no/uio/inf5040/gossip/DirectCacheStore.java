@@ -0,0 +1,170 @@
+package no.uio.inf5040.gossip;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cache store keeping every slot outside the Java heap.
+ * 
+ * Each slot is a fixed-size record holding its degree, neighbors, exchange
+ * tags, sent list and position table. Records are packed into direct byte
+ * buffers of at most 1GB, sized for the expected number of slots, and new
+ * buffers are added when more slots are allocated, so the store grows without
+ * copying and its size is not bound by the 2GB limit of
+ * a single buffer. When a file is given, the buffers are memory-mapped
+ * regions of that file instead, and the overlay is paged by the operating
+ * system rather than held in memory. The file is only open while a region
+ * is mapped, a mapping staying valid once it is closed.
+ *
+ */
+public class DirectCacheStore extends CacheStore {
+
+	private static final int MAX_CHUNK = 1 << 30;
+
+	// Offsets of the fields in a record.
+	private final int neighborsOffset;
+	private final int sentInOffset;
+	private final int sentOffset;
+	private final int tableOffset;
+
+	// The size of a record, rounded to a multiple of 4 bytes.
+	private final int recordSize;
+
+	// The number of records in a chunk.
+	private final int chunkSlots;
+
+	private final List<ByteBuffer> chunks;
+
+	// The file the records are mapped to, or null
+	private final String path;
+
+	private int slots;
+
+	/**
+	 * @param cacheSize the maximum size of each cache
+	 * @param shuffleLength the maximum length of a shuffle exchange
+	 * @param capacity the expected number of slots
+	 * @param path the file to map the records to, or null to keep them in
+	 * direct buffers
+	 * @throws IOException if the file cannot be opened
+	 */
+	public DirectCacheStore(int cacheSize, int shuffleLength, int capacity, String path) throws IOException
+	{
+		super(cacheSize, shuffleLength);
+		if(cacheSize >= Character.MAX_VALUE){
+			throw new IllegalArgumentException("Cache size " + cacheSize + " is too large");
+		}
+		neighborsOffset = 4;
+		sentInOffset = neighborsOffset + 4 * cacheSize;
+		sentOffset = sentInOffset + 4 * cacheSize;
+		tableOffset = sentOffset + 4 * shuffleLength;
+		recordSize = (tableOffset + 2 * tableSize + 3) & ~3;
+		chunkSlots = Math.max(1, Math.min(MAX_CHUNK / recordSize, capacity));
+		chunks = new ArrayList<ByteBuffer>();
+		this.path = path;
+		if(path != null){
+			// Regions mapped past the end of the file are zero filled
+			RandomAccessFile file = new RandomAccessFile(path, "rw");
+			try {
+				file.setLength(0);
+			} finally {
+				file.close();
+			}
+		}
+		slots = 0;
+	}
+
+	public int allocate() {
+		if(slots == chunks.size() * chunkSlots){
+			chunks.add(newChunk());
+		}
+		return slots++;
+	}
+
+	private ByteBuffer newChunk() {
+		int bytes = chunkSlots * recordSize;
+		ByteBuffer chunk;
+		if(path == null){
+			chunk = ByteBuffer.allocateDirect(bytes);
+		}else{
+			try {
+				RandomAccessFile file = new RandomAccessFile(path, "rw");
+				try {
+					chunk = file.getChannel().map(FileChannel.MapMode.READ_WRITE,
+							(long) chunks.size() * bytes, bytes);
+				} finally {
+					file.close();
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException("Cannot map cache store file", e);
+			}
+		}
+		return chunk.order(ByteOrder.nativeOrder());
+	}
+
+	private ByteBuffer chunk(int slot) {
+		return chunks.get(slot / chunkSlots);
+	}
+
+	private int base(int slot) {
+		return (slot % chunkSlots) * recordSize;
+	}
+
+	public int slots() {
+		return slots;
+	}
+
+	public int degree(int slot) {
+		return chunk(slot).getInt(base(slot));
+	}
+
+	public int getNeighbor(int slot, int i) {
+		return chunk(slot).getInt(base(slot) + neighborsOffset + 4 * i);
+	}
+
+	public int getSentIn(int slot, int i) {
+		return chunk(slot).getInt(base(slot) + sentInOffset + 4 * i);
+	}
+
+	public void setSentIn(int slot, int i, int exchange) {
+		chunk(slot).putInt(base(slot) + sentInOffset + 4 * i, exchange);
+	}
+
+	public int getSent(int slot, int i) {
+		return chunk(slot).getInt(base(slot) + sentOffset + 4 * i);
+	}
+
+	public void setSent(int slot, int i, int index) {
+		chunk(slot).putInt(base(slot) + sentOffset + 4 * i, index);
+	}
+
+	protected void setDegree(int slot, int degree) {
+		chunk(slot).putInt(base(slot), degree);
+	}
+
+	protected void setNeighbor(int slot, int i, int index) {
+		chunk(slot).putInt(base(slot) + neighborsOffset + 4 * i, index);
+	}
+
+	protected int getTable(int slot, int i) {
+		return chunk(slot).getChar(base(slot) + tableOffset + 2 * i);
+	}
+
+	protected void setTable(int slot, int i, int value) {
+		chunk(slot).putChar(base(slot) + tableOffset + 2 * i, (char) value);
+	}
+
+	public long heapBytesPerSlot() {
+		return 0;
+	}
+
+	public long offHeapBytesPerSlot() {
+		return recordSize;
+	}
+
+}
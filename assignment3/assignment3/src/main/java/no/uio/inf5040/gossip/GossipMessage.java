@@ -1,32 +1,122 @@
 package no.uio.inf5040.gossip;
 
-import java.util.List;
-
-import peersim.core.Node;
-
+/**
+ * The message of the shuffle: its type, the network index of the node
+ * that sent it, and the shuffle list, as network indices.
+ * 
+ * A message holds no reference to a node and allocates nothing once
+ * created, so BasicShuffle takes its messages from a MessagePool and gives
+ * them back once they are handled, instead of creating them for every
+ * exchange.
+ * 
+ * A node with several exchanges in flight tags its request with an
+ * exchange identifier, which the reply carries back; it is 0 otherwise.
+ * 
+ * The size of a message on the wire is modeled by serializedSize: a byte
+ * for the type, then the sender, the exchange identifier when it is not 0,
+ * the number of entries and the entries, each as a variable-length integer
+ * of seven bits per byte, the way a compact encoding would send node
+ * identifiers of that many bits.
+ *
+ */
 public class GossipMessage {
 	
-	private Node node;
-	private List<Entry> shuffleList;
+	private static final int[] EMPTY = new int[0];
+	
+	// The network index of the originating node
+	private int sender;
+	// The exchange the message belongs to, or 0
+	private int exchange;
+	// The network indices of the shuffled neighbors
+	private final int[] shuffleList;
+	private int size;
 	private MessageType type;
 	
-	public GossipMessage(Node node, List<Entry> shuffleList) {
-		//super();
-		this.node = node;
-		this.shuffleList = shuffleList;
+	/**
+	 * @param capacity the maximum number of neighbors in the shuffle list
+	 */
+	public GossipMessage(int capacity) {
+		this.shuffleList = capacity == 0 ? EMPTY : new int[capacity];
+		this.size = 0;
 	}
 
-	public Node getNode() {
-		return node;
+	/**
+	 * @return the network index of the originating node
+	 */
+	public int getSender() {
+		return sender;
+	}
+	public void setSender(int sender) {
+		this.sender = sender;
+	}
+	
+	/**
+	 * @return the identifier of the exchange the message belongs to, or 0
+	 */
+	public int getExchange() {
+		return exchange;
+	}
+	public void setExchange(int exchange) {
+		this.exchange = exchange;
+	}
+	
+	/**
+	 * @return the maximum number of neighbors in the shuffle list
+	 */
+	public int capacity() {
+		return shuffleList.length;
 	}
-	public void setNode(Node node) {
-		this.node = node;
+	
+	/**
+	 * @return the number of neighbors in the shuffle list
+	 */
+	public int size() {
+		return size;
 	}
-	public List<Entry> getShuffleList() {
-		return shuffleList;
+	
+	/**
+	 * @return the network index of the i-th neighbor in the shuffle list
+	 */
+	public int get(int i) {
+		return shuffleList[i];
 	}
-	public void setShuffleList(List<Entry> shuffleList) {
-		this.shuffleList = shuffleList;
+	
+	/**
+	 * Appends the network index of a neighbor to the shuffle list.
+	 */
+	public void add(int index) {
+		shuffleList[size++] = index;
+	}
+	
+	/**
+	 * @return the size of the message on the wire, in bytes, as modeled
+	 */
+	public int serializedSize() {
+		int bytes = 1 + varintSize(sender) + varintSize(size);
+		if(exchange != 0){
+			bytes += varintSize(exchange);
+		}
+		for(int i = 0; i < size; i++){
+			bytes += varintSize(shuffleList[i]);
+		}
+		return bytes;
+	}
+	
+	/**
+	 * @return the number of bytes of a non-negative value as a
+	 * variable-length integer
+	 */
+	private static int varintSize(int value) {
+		int bits = 32 - Integer.numberOfLeadingZeros(value | 1);
+		return (bits + 6) / 7;
+	}
+	
+	/**
+	 * Empties the shuffle list, and forgets the exchange.
+	 */
+	public void clear() {
+		size = 0;
+		exchange = 0;
 	}
 
 	public MessageType getType() {
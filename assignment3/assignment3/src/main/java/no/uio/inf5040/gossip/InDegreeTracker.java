@@ -0,0 +1,113 @@
+package no.uio.inf5040.gossip;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * In-degree of every node and their distribution, kept up to date as the
+ * caches change.
+ *
+ * BasicShuffle reports every neighbor it adds to or removes from a cache, so
+ * the distribution can be read at any time in time proportional to the
+ * largest in-degree, instead of counting all the caches again. The counts
+ * are atomic, so the engines running nodes on several threads can share a
+ * tracker. Nodes are registered as the protocol is cloned, which PeerSim
+ * does on a single thread.
+ *
+ */
+public class InDegreeTracker {
+
+	// The in-degree of each node, by network index
+	private AtomicIntegerArray degrees;
+
+	// The number of nodes with each in-degree
+	private AtomicIntegerArray histogram;
+
+	// The number of nodes registered
+	private int nodes;
+
+	// Not less than the largest in-degree
+	private final AtomicInteger max = new AtomicInteger();
+
+	public InDegreeTracker(int capacity)
+	{
+		degrees = new AtomicIntegerArray(Math.max(capacity, 1));
+		histogram = new AtomicIntegerArray(Math.max(capacity, 1) + 1);
+	}
+
+	/**
+	 * Registers a node, with an in-degree of zero.
+	 */
+	public synchronized void register() {
+		if(nodes == degrees.length()){
+			int capacity = nodes + (nodes >> 1) + 1;
+			AtomicIntegerArray d = new AtomicIntegerArray(capacity);
+			AtomicIntegerArray h = new AtomicIntegerArray(capacity + 1);
+			for(int i = 0; i < nodes; i++){
+				d.set(i, degrees.get(i));
+				h.set(i, histogram.get(i));
+			}
+			h.set(nodes, histogram.get(nodes));
+			degrees = d;
+			histogram = h;
+		}
+		nodes++;
+		histogram.incrementAndGet(0);
+	}
+
+	/**
+	 * Records that a cache now holds the given node.
+	 */
+	public void increment(int index) {
+		int degree = degrees.incrementAndGet(index);
+		histogram.incrementAndGet(degree);
+		histogram.decrementAndGet(degree - 1);
+		int m = max.get();
+		while(degree > m && !max.compareAndSet(m, degree)){
+			m = max.get();
+		}
+	}
+
+	/**
+	 * Records that a cache no longer holds the given node.
+	 */
+	public void decrement(int index) {
+		int degree = degrees.decrementAndGet(index);
+		histogram.incrementAndGet(degree);
+		histogram.decrementAndGet(degree + 1);
+	}
+
+	/**
+	 * @return the in-degree of the node with the given index
+	 */
+	public int getDegree(int index) {
+		return degrees.get(index);
+	}
+
+	/**
+	 * @return the number of nodes registered
+	 */
+	public int size() {
+		return nodes;
+	}
+
+	/**
+	 * Returns the in-degree distribution, where element i is the number of
+	 * nodes with in-degree i, up to the largest in-degree.
+	 */
+	public int[] getHistogram() {
+		int m = max.get();
+		int last = m;
+		while(last > 0 && histogram.get(last) == 0){
+			last--;
+		}
+		// Lower the bound for the next time, unless it was raised meanwhile
+		max.compareAndSet(m, last);
+		int[] result = new int[last + 1];
+		for(int i = 0; i <= last; i++){
+			result[i] = histogram.get(i);
+		}
+		return result;
+	}
+
+}
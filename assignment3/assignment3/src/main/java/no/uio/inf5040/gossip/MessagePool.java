@@ -0,0 +1,82 @@
+package no.uio.inf5040.gossip;
+
+/**
+ * Messages of BasicShuffle that are no longer in use, handed out again
+ * instead of creating new ones.
+ *
+ * A message is taken from the pool when it is sent and given back by the
+ * node that handles it, once processEvent is done with it, so the pool
+ * holds at most as many messages as were ever in flight at the same time,
+ * and an exchange creates none once the simulation is under way. A message
+ * that is lost by the transport is simply never given back. The pool is
+ * not synchronized: the protocol shares one among all the nodes, and the
+ * engines running nodes on several threads give every thread its own
+ * through ShuffleContext. A message may be given back to another pool than
+ * the one it was taken from.
+ *
+ */
+public class MessagePool {
+
+	// The capacity of the shuffle list of the messages
+	private final int capacity;
+
+	private GossipMessage[] free = new GossipMessage[16];
+
+	private int count;
+
+	/**
+	 * @param capacity the maximum number of neighbors in the shuffle list
+	 * of the messages
+	 */
+	public MessagePool(int capacity)
+	{
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return an empty message of the given type from the given node
+	 */
+	public GossipMessage acquire(MessageType type, int sender) {
+		GossipMessage message;
+		if(count == 0){
+			message = new GossipMessage(capacity);
+		}else{
+			message = free[--count];
+			free[count] = null;
+		}
+		message.clear();
+		message.setType(type);
+		message.setSender(sender);
+		return message;
+	}
+
+	/**
+	 * Gives back a message, which the caller must no longer use.
+	 */
+	public void release(GossipMessage message) {
+		if(message.capacity() != capacity){
+			return;
+		}
+		if(count == free.length){
+			GossipMessage[] f = new GossipMessage[2 * count];
+			System.arraycopy(free, 0, f, 0, count);
+			free = f;
+		}
+		free[count++] = message;
+	}
+
+	/**
+	 * @return the capacity of the shuffle list of the messages
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the number of messages in the pool
+	 */
+	public int size() {
+		return count;
+	}
+
+}
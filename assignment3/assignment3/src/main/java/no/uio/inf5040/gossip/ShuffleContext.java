@@ -0,0 +1,82 @@
+package no.uio.inf5040.gossip;
+
+import java.util.Random;
+
+/**
+ * Per-thread state for running BasicShuffle outside the single-threaded
+ * PeerSim engines.
+ * 
+ * By default the protocol draws its random numbers from CommonState.r, its
+ * subsets in a scratch buffer and its messages from a pool, both shared by
+ * all the nodes. An engine running nodes on several threads binds a context
+ * to each thread before calling the protocol, so that every thread has its
+ * own random stream, buffer and pool, and a run is reproducible for a given
+ * seed and number of threads.
+ *
+ */
+public class ShuffleContext {
+
+	private static final ThreadLocal<ShuffleContext> current = new ThreadLocal<ShuffleContext>();
+
+	private final Random random;
+
+	private int[] scratch;
+
+	private MessagePool pool;
+
+	/**
+	 * @param random the random stream of the thread
+	 */
+	public ShuffleContext(Random random)
+	{
+		this.random = random;
+		this.scratch = new int[0];
+	}
+
+	/**
+	 * Binds a context to the calling thread.
+	 */
+	public static void enter(ShuffleContext context) {
+		current.set(context);
+	}
+
+	/**
+	 * Unbinds the context of the calling thread.
+	 */
+	public static void exit() {
+		current.remove();
+	}
+
+	/**
+	 * @return the context bound to the calling thread, or null
+	 */
+	public static ShuffleContext current() {
+		return current.get();
+	}
+
+	public Random getRandom() {
+		return random;
+	}
+
+	/**
+	 * @return a scratch buffer of at least the given size
+	 */
+	public int[] getScratch(int size) {
+		if(scratch.length < size){
+			scratch = new int[size];
+		}
+		return scratch;
+	}
+
+	/**
+	 * @return the pool of messages of the thread, for messages of the given
+	 * capacity
+	 */
+	public MessagePool getPool(int capacity) {
+		if(pool == null || pool.getCapacity() != capacity){
+			pool = new MessagePool(capacity);
+		}
+		return pool;
+	}
+
+}
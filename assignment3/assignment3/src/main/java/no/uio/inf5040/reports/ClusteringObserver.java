@@ -0,0 +1,228 @@
+package no.uio.inf5040.reports;
+
+import java.util.Arrays;
+
+import peersim.config.Configuration;
+import peersim.core.CommonState;
+import peersim.core.Control;
+
+/**
+ * Reports the exact clustering coefficient of the overlay, counting the
+ * triangles of every node.
+ *
+ * The overlay is taken as undirected, as GraphStats does to compute the
+ * clustering coefficient, from the sorted rows of neighbors of the snapshot
+ * of the observer, see OverlaySnapshot. Every edge is oriented from its
+ * end with the lower degree to the other, ties broken by index, so each
+ * triangle is found once, from its lowest end, by intersecting the
+ * oriented rows of the two ends of each edge. A row at least as long as
+ * the bitset parameter is set once in a bitset of the nodes and the rows
+ * of its neighbors are tested against it; a shorter row is merged with
+ * them. The bitset is the faster of the two on the overlays of the
+ * assignment, so it is used for all the rows by default. The nodes are
+ * split over several threads, each counting the triangles into an array
+ * of its own.
+ *
+ * Reports the average over all the nodes of the clustering coefficient of
+ * the node, which is what GraphStats reports when nc is the size of the
+ * network; the transitivity, the fraction of the paths of two edges that
+ * are closed by a third one; and the number of triangles. The values are
+ * written to the output of the observer, see ObserverOutput. As in
+ * GraphStats a node with a single neighbor has a coefficient of 1; a node
+ * without neighbors has 0, where GraphStats gives NaN.
+ *
+ */
+public class ClusteringObserver implements Control
+{
+	private static final String PAR_BITSET = "bitset";
+
+	private static final String[] NAMES = { "clustering", "transitivity", "triangles" };
+
+	private final String prefix;
+
+	// The length from which an oriented row is tested in a bitset
+	private final int bitset;
+
+	private final Workers workers;
+
+	private final ObserverOutput output;
+
+	// The overlay, set on the first run
+	private OverlaySnapshot snapshot;
+
+	// The oriented rows, and the triangles of every node counted by each
+	// thread
+	private int[] offsets = new int[0];
+	private int[] targets = new int[0];
+	private int[][] triangles = new int[0][];
+
+	public ClusteringObserver(String prefix)
+	{
+		this.prefix = prefix;
+		this.bitset = Configuration.getInt(prefix + "." + PAR_BITSET, 1);
+		this.workers = new Workers(prefix);
+		this.output = new ObserverOutput(prefix);
+	}
+
+	public boolean execute()
+	{
+		if (snapshot == null)
+			snapshot = OverlaySnapshot.forObserver(prefix);
+		final OverlaySnapshot.Rows rows = snapshot.getSimple();
+		final int size = rows.size;
+		if (size == 0){
+			output.endRun();
+			return false;
+		}
+		final int parts = workers.parts();
+		if (offsets.length != size + 1)
+			offsets = new int[size + 1];
+		if (triangles.length != parts || triangles[0].length != size)
+			triangles = new int[parts][size];
+		final int[] offsets = this.offsets;
+
+		// The oriented rows, which keep the order of the rows by index
+		final long[] totals = new long[parts];
+		workers.run(size, new Workers.Body() {
+			public void run(int part, int from, int to) {
+				long total = 0;
+				for (int u = from; u < to; u++){
+					int n = 0;
+					for (int k = rows.offsets[u]; k < rows.offsets[u + 1]; k++)
+						if (before(rows, u, rows.targets[k]))
+							n++;
+					offsets[u + 1] = n;
+					total += n;
+				}
+				totals[part] = total;
+			}
+		});
+		long sum = 0;
+		for (int i = 0; i < parts; i++)
+			sum += totals[i];
+		offsets[0] = 0;
+		for (int u = 0; u < size; u++)
+			offsets[u + 1] += offsets[u];
+		if (targets.length < sum)
+			targets = new int[(int) sum];
+		final int[] targets = this.targets;
+		workers.run(size, new Workers.Body() {
+			public void run(int part, int from, int to) {
+				for (int u = from; u < to; u++){
+					int j = offsets[u];
+					for (int k = rows.offsets[u]; k < rows.offsets[u + 1]; k++){
+						int v = rows.targets[k];
+						if (before(rows, u, v))
+							targets[j++] = v;
+					}
+				}
+			}
+		});
+
+		// The triangles, each found from the end it is oriented away from
+		workers.run(size, new Workers.Body() {
+			public void run(int part, int from, int to) {
+				int[] count = triangles[part];
+				Arrays.fill(count, 0);
+				long[] bits = null;
+				for (int u = from; u < to; u++){
+					int start = offsets[u];
+					int end = offsets[u + 1];
+					if (end - start >= bitset){
+						if (bits == null)
+							bits = new long[(size + 63) >>> 6];
+						for (int k = start; k < end; k++)
+							bits[targets[k] >>> 6] |= 1L << targets[k];
+						for (int k = start; k < end; k++){
+							int v = targets[k];
+							for (int l = offsets[v]; l < offsets[v + 1]; l++){
+								int w = targets[l];
+								if ((bits[w >>> 6] & 1L << w) != 0){
+									count[u]++;
+									count[v]++;
+									count[w]++;
+								}
+							}
+						}
+						for (int k = start; k < end; k++)
+							bits[targets[k] >>> 6] = 0;
+					}
+					else {
+						for (int k = start; k < end; k++){
+							int v = targets[k];
+							int i = start;
+							int j = offsets[v];
+							int last = offsets[v + 1];
+							while (i < end && j < last){
+								int a = targets[i];
+								int b = targets[j];
+								if (a < b)
+									i++;
+								else if (a > b)
+									j++;
+								else {
+									count[u]++;
+									count[v]++;
+									count[a]++;
+									i++;
+									j++;
+								}
+							}
+						}
+					}
+				}
+			}
+		});
+
+		// The coefficients, from the triangles and the degree of every node
+		final double[] coefficients = new double[parts];
+		final long[] closed = new long[parts];
+		final long[] paths = new long[parts];
+		workers.run(size, new Workers.Body() {
+			public void run(int part, int from, int to) {
+				double c = 0;
+				long t = 0;
+				long p = 0;
+				for (int u = from; u < to; u++){
+					long degree = rows.degree(u);
+					int n = 0;
+					for (int[] count : triangles)
+						n += count[u];
+					if (degree == 1)
+						c += 1;
+					else if (degree > 1)
+						c += 2.0 * n / (degree * (degree - 1));
+					t += n;
+					p += degree * (degree - 1) / 2;
+				}
+				coefficients[part] = c;
+				closed[part] = t;
+				paths[part] = p;
+			}
+		});
+		double c = 0;
+		long t = 0;
+		long p = 0;
+		for (int i = 0; i < parts; i++){
+			c += coefficients[i];
+			t += closed[i];
+			p += paths[i];
+		}
+
+		double transitivity = p == 0 ? 0 : (double) t / p;
+		output.write(CommonState.getTime(), NAMES, new double[] { c / size, transitivity, t / 3 });
+		output.endRun();
+		return false;
+	}
+
+	/**
+	 * @return whether the edge between u and v is oriented from u to v
+	 */
+	private static boolean before(OverlaySnapshot.Rows rows, int u, int v)
+	{
+		int du = rows.degree(u);
+		int dv = rows.degree(v);
+		return du < dv || (du == dv && u < v);
+	}
+
+}
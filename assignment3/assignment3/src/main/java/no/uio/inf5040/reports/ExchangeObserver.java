@@ -0,0 +1,94 @@
+package no.uio.inf5040.reports;
+
+import no.uio.inf5040.gossip.BasicShuffle;
+import peersim.config.Configuration;
+import peersim.core.CommonState;
+import peersim.core.Control;
+import peersim.core.Network;
+
+/**
+ * Reports the exchanges of BasicShuffle since the last run, so that run
+ * every cycle it gives the exchanges and rejections of every cycle, and
+ * how far the overlay is from converged.
+ *
+ * Reports the exchanges completed and the rejections received by all the
+ * nodes since the last run, then the coefficient of variation of the
+ * in-degrees, their standard deviation over their mean, from the snapshot
+ * of the observer, see OverlaySnapshot. From a star, it starts high and
+ * falls as the shuffles mix the caches, to level off once the overlay is
+ * random. The overlay is taken as converged the first time the coefficient
+ * falls to tolerance, 0.25 by default, and the last value is the time it
+ * did, -1 until then, so that runs with and without a pipeline, see
+ * BasicShuffle, can be compared by the cycles they take to converge. The
+ * values are written to the output of the observer, see ObserverOutput.
+ *
+ */
+public class ExchangeObserver implements Control
+{
+	private static final String PAR_PID = "protocol";
+	private static final String PAR_TOLERANCE = "tolerance";
+
+	private static final String[] NAMES = { "exchanges", "rejects", "variation", "converged" };
+
+	private final String prefix;
+	private final int pid;
+	private final double tolerance;
+
+	private final ObserverOutput output;
+
+	// The overlay, set on the first run
+	private OverlaySnapshot snapshot;
+
+	// The totals of the last run
+	private long exchanges;
+	private long rejects;
+
+	// The time the overlay converged, or -1
+	private long converged = -1;
+
+	public ExchangeObserver(String prefix)
+	{
+		this.prefix = prefix;
+		this.pid = Configuration.getPid(prefix + "." + PAR_PID);
+		this.tolerance = Configuration.getDouble(prefix + "." + PAR_TOLERANCE, 0.25);
+		this.output = new ObserverOutput(prefix);
+	}
+
+	public boolean execute()
+	{
+		long completed = 0;
+		long rejected = 0;
+		for (int i = 0; i < Network.size(); i++){
+			BasicShuffle protocol = (BasicShuffle) Network.get(i).getProtocol(pid);
+			completed += protocol.getCompleted();
+			rejected += protocol.getRejected();
+		}
+
+		if (snapshot == null)
+			snapshot = OverlaySnapshot.forObserver(prefix);
+		int[] degrees = snapshot.getInDegrees();
+		double sum = 0;
+		double squares = 0;
+		for (int degree : degrees){
+			sum += degree;
+			squares += (double) degree * degree;
+		}
+		double variation = 0;
+		if (sum > 0){
+			double mean = sum / degrees.length;
+			variation = Math.sqrt(Math.max(0, squares / degrees.length - mean * mean)) / mean;
+		}
+		if (converged < 0 && sum > 0 && variation <= tolerance){
+			converged = CommonState.getTime();
+			System.err.println(prefix + ": converged at time " + converged);
+		}
+
+		output.write(CommonState.getTime(), NAMES, new double[] { completed - exchanges,
+				rejected - rejects, variation, converged });
+		output.endRun();
+		exchanges = completed;
+		rejects = rejected;
+		return false;
+	}
+
+}
@@ -0,0 +1,277 @@
+package no.uio.inf5040.reports;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import peersim.config.Configuration;
+import peersim.config.IllegalParameterException;
+import peersim.core.CommonState;
+import peersim.core.Control;
+
+/**
+ * Reports the average path length and the effective diameter of the
+ * overlay from its approximate neighborhood function, computed with
+ * HyperLogLog counters as HyperANF does.
+ *
+ * Every node has a counter estimating the number of nodes it reaches in t
+ * hops. At t = 0 the counter holds the node itself, and at every step a
+ * node takes the union of its counter and those of its out-neighbors, so
+ * the sum of the counters is the number of pairs at distance t or less.
+ * The steps stop when no counter changes any more. A counter is a number
+ * of registers of one byte, packed eight to a long, and a union is the
+ * maximum of the registers, taken eight at a time with word operations.
+ * Only the nodes with a neighbor whose counter changed at the last step
+ * are updated, and the nodes are split over several threads, each writing
+ * only the counters of its own nodes. The memory is a few words per node
+ * whatever the size of the overlay, so the values remain practical where
+ * an exact search, or the nl parameter of GraphStats, is not.
+ *
+ * The parameter registers sets the number of registers of a counter, a
+ * power of two from 16 to 1024, 64 by default. The standard error of a
+ * counter is about 1.04 / sqrt(registers); the errors of the counters
+ * mostly cancel in their sum. The hash of the nodes is drawn again at
+ * every run, from a random stream of the observer, seeded with its seed
+ * parameter, random.seed by default, so that the observer draws nothing
+ * from CommonState.r and leaves the rest of the simulation as it is.
+ *
+ * Reports the average distance over the pairs connected by a path, the
+ * effective diameter, the distance within which the fraction given by the
+ * quantile parameter of these pairs are, 0.9 by default, interpolated
+ * between steps, and the estimated number of these pairs, written to the
+ * output of the observer, see ObserverOutput. The overlay is read from the
+ * snapshot of the observer, see OverlaySnapshot. With undir set, the edges
+ * are followed in both directions, as GraphStats does with undir.
+ *
+ */
+public class HyperAnfObserver implements Control
+{
+	private static final String PAR_REGISTERS = "registers";
+	private static final String PAR_QUANTILE = "quantile";
+	private static final String PAR_UNDIR = "undir";
+	private static final String PAR_SEED = "seed";
+
+	private static final String[] NAMES = { "avgpath", "effdiameter", "pairs" };
+
+	// The high bit of every byte of a long
+	private static final long HIGH = 0x8080808080808080L;
+
+	private final String prefix;
+	private final int log2m;
+	private final int words;
+	private final double quantile;
+	private final boolean undir;
+
+	// The constant of the HyperLogLog estimate, times the square of the
+	// number of registers
+	private final double alpha;
+
+	// The stream the hashes are drawn from
+	private final Random random;
+
+	// 2 to the power of minus the index
+	private final double[] powers = new double[64];
+
+	private final Workers workers;
+
+	private final ObserverOutput output;
+
+	// The overlay, set on the first run
+	private OverlaySnapshot snapshot;
+
+	// The counters of the current and the next step, the estimate of every
+	// counter, and whether the counter of each node changed at the current
+	// and at the next step
+	private long[] counters = new long[0];
+	private long[] next = new long[0];
+	private double[] estimates = new double[0];
+	private boolean[] changed = new boolean[0];
+	private boolean[] changing = new boolean[0];
+
+	public HyperAnfObserver(String prefix)
+	{
+		this.prefix = prefix;
+		int m = Configuration.getInt(prefix + "." + PAR_REGISTERS, 64);
+		if (m < 16 || m > 1024 || Integer.bitCount(m) != 1)
+			throw new IllegalParameterException(prefix + "." + PAR_REGISTERS,
+					"must be a power of two from 16 to 1024");
+		this.log2m = Integer.numberOfTrailingZeros(m);
+		this.words = m / 8;
+		this.quantile = Configuration.getDouble(prefix + "." + PAR_QUANTILE, 0.9);
+		this.undir = Configuration.getBoolean(prefix + "." + PAR_UNDIR, false);
+		double a = m == 16 ? 0.673 : m == 32 ? 0.697 : m == 64 ? 0.709 : 0.7213 / (1 + 1.079 / m);
+		this.alpha = a * m * m;
+		for (int i = 0; i < powers.length; i++)
+			powers[i] = Math.scalb(1.0, -i);
+		this.random = new Random(Configuration.getLong(prefix + "." + PAR_SEED,
+				Configuration.getLong(CommonState.PAR_SEED, System.currentTimeMillis())));
+		this.workers = new Workers(prefix);
+		this.output = new ObserverOutput(prefix);
+	}
+
+	public boolean execute()
+	{
+		if (snapshot == null)
+			snapshot = OverlaySnapshot.forObserver(prefix);
+		OverlaySnapshot.Rows rows = undir ? snapshot.getSimple() : snapshot.getOut();
+		final int size = rows.size;
+		if (size == 0){
+			output.endRun();
+			return false;
+		}
+		final int[] offsets = rows.offsets;
+		final int[] targets = rows.targets;
+		if (estimates.length != size){
+			counters = new long[size * words];
+			next = new long[size * words];
+			estimates = new double[size];
+			changed = new boolean[size];
+			changing = new boolean[size];
+		}
+
+		// Every node in its own counter
+		final long seed = random.nextLong();
+		final int parts = workers.parts();
+		final double[] sums = new double[parts];
+		workers.run(size, new Workers.Body() {
+			public void run(int part, int from, int to) {
+				double sum = 0;
+				for (int u = from; u < to; u++){
+					int base = u * words;
+					for (int i = 0; i < words; i++)
+						counters[base + i] = 0;
+					long h = mix(u + seed);
+					int register = (int) (h >>> (64 - log2m));
+					long rho = Long.numberOfLeadingZeros(h << log2m | 1L << (log2m - 1)) + 1;
+					counters[base + (register >>> 3)] |= rho << ((register & 7) << 3);
+					estimates[u] = estimate(counters, base);
+					sum += estimates[u];
+					changed[u] = true;
+				}
+				sums[part] = sum;
+			}
+		});
+
+		// The neighborhood function, one step at a time
+		double[] function = new double[16];
+		function[0] = sum(sums);
+		final boolean[] active = new boolean[parts];
+		int steps = 0;
+		while (true){
+			workers.run(size, new Workers.Body() {
+				public void run(int part, int from, int to) {
+					double sum = 0;
+					boolean any = false;
+					for (int u = from; u < to; u++){
+						int base = u * words;
+						System.arraycopy(counters, base, next, base, words);
+						for (int k = offsets[u]; k < offsets[u + 1]; k++){
+							int v = targets[k];
+							if (!changed[v])
+								continue;
+							int other = v * words;
+							for (int i = 0; i < words; i++)
+								next[base + i] = max(next[base + i], counters[other + i]);
+						}
+						boolean change = false;
+						for (int i = 0; i < words && !change; i++)
+							change = next[base + i] != counters[base + i];
+						if (change)
+							estimates[u] = estimate(next, base);
+						changing[u] = change;
+						any |= change;
+						sum += estimates[u];
+					}
+					sums[part] = sum;
+					active[part] = any;
+				}
+			});
+			boolean any = false;
+			for (int i = 0; i < parts; i++)
+				any |= active[i];
+			if (!any)
+				break;
+			steps++;
+			if (steps == function.length)
+				function = Arrays.copyOf(function, 2 * steps);
+			function[steps] = sum(sums);
+			long[] t = counters;
+			counters = next;
+			next = t;
+			boolean[] c = changed;
+			changed = changing;
+			changing = c;
+		}
+
+		// The pairs at each distance, from the differences of the function
+		double pairs = function[steps] - function[0];
+		double total = 0;
+		double effective = 0;
+		double target = quantile * pairs;
+		for (int t = 1; t <= steps; t++){
+			total += t * (function[t] - function[t - 1]);
+			if (effective == 0 && function[t] - function[0] >= target){
+				double below = function[t - 1] - function[0];
+				double step = function[t] - function[t - 1];
+				effective = t - 1 + (step == 0 ? 1 : (target - below) / step);
+			}
+		}
+		double avg = pairs <= 0 ? 0 : total / pairs;
+		output.write(CommonState.getTime(), NAMES, new double[] { avg, effective, pairs });
+		output.endRun();
+		return false;
+	}
+
+	/**
+	 * @return the number of nodes estimated by the counter at the given
+	 * position
+	 */
+	private double estimate(long[] array, int base)
+	{
+		double sum = 0;
+		int zeros = 0;
+		for (int i = 0; i < words; i++){
+			long word = array[base + i];
+			for (int j = 0; j < 8; j++){
+				int register = (int) (word >>> (j << 3)) & 0xFF;
+				sum += powers[register];
+				if (register == 0)
+					zeros++;
+			}
+		}
+		int m = words * 8;
+		double e = alpha / sum;
+		// Linear counting for small values, as HyperLogLog does
+		if (e <= 2.5 * m && zeros > 0)
+			e = m * Math.log((double) m / zeros);
+		return e;
+	}
+
+	/**
+	 * @return the maximum of every byte of a and b, all below 128
+	 */
+	private static long max(long a, long b)
+	{
+		long ge = ((a | HIGH) - b) & HIGH;
+		long mask = (ge >>> 7) * 0xFF;
+		return (a & mask) | (b & ~mask);
+	}
+
+	/**
+	 * @return a 64-bit hash of x, the finalizer of MurmurHash3
+	 */
+	private static long mix(long x)
+	{
+		x = (x ^ (x >>> 33)) * 0xFF51AFD7ED558CCDL;
+		x = (x ^ (x >>> 33)) * 0xC4CEB9FE1A85EC53L;
+		return x ^ (x >>> 33);
+	}
+
+	private static double sum(double[] values)
+	{
+		double sum = 0;
+		for (double value : values)
+			sum += value;
+		return sum;
+	}
+
+}
@@ -1,22 +1,25 @@
 package no.uio.inf5040.reports;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.Arrays;
 
+import no.uio.inf5040.gossip.BasicShuffle;
+import no.uio.inf5040.gossip.InDegreeTracker;
 import peersim.config.Configuration;
 import peersim.core.CommonState;
 import peersim.core.Control;
-import peersim.core.Linkable;
 import peersim.core.Network;
-import peersim.core.Node;
 
 /**
  * @author Lucas Provensi
  * 
  * Report the in-degree distribution of the network.
- * Uses the list of neighbors obtained from a linkable protocol.
+ * Uses the in-degrees of the overlay snapshot of the observer, see
+ * OverlaySnapshot. Each thread makes the histogram of its share of the
+ * nodes, and the histograms are merged at the end. When BasicShuffle tracks
+ * the in-degrees as its caches change, the distribution is read from its
+ * tracker instead, in time proportional to the largest in-degree, so that
+ * it can be observed every cycle. The distribution goes to the output
+ * configured for the observer, see ObserverOutput.
  *
  */
 public class InDegreeObserver implements Control
@@ -29,66 +32,97 @@ public class InDegreeObserver implements Control
 	private final long startTime;
 	private final long endTime;
 
+	private final Workers workers;
+
+	private final ObserverOutput output;
+
+	private final String prefix;
+
+	// The overlay, set on the first run
+	private OverlaySnapshot snapshot;
+
 	public InDegreeObserver(String prefix)
 	{
+		this.prefix = prefix;
 		this.pid = Configuration.getPid(prefix + "." + PAR_PID);
 		this.startTime = Configuration.getLong(prefix + "." + PAR_START_PROTOCOL, Long.MIN_VALUE);
 		this.endTime = Configuration.getLong(prefix + "." + PAR_END_PROTOCOL, Long.MAX_VALUE);
+		this.workers = new Workers(prefix);
+		this.output = new ObserverOutput(prefix);
 	}
 
 	public boolean execute()
 	{
-		if ((CommonState.getTime() >= endTime) || (CommonState.getTime() < startTime))
+		if ((CommonState.getTime() >= endTime) || (CommonState.getTime() < startTime)){
+			output.endRun();
 			return false;
+		}
 
-		// Map of all nodes and their in-degree count
-		Map<Long, Integer> degreeCount = new HashMap<Long, Integer>();
-
-		for (int i = 0; i < Network.size(); i++){
-			// Get all the nodes in the network
-			Node n = Network.get(i);
-
-			if (n.isUp()){
-				// Get the linkable protocol for all the running nodes
-				Linkable linkable = (Linkable)n.getProtocol(pid);
-				// Go through the neighbor list and update the degrees in the map 
-				for (int j = 0; j < linkable.degree(); j++){
-					Long nodeId = linkable.getNeighbor(j).getID();
-					Integer count = degreeCount.get(nodeId);
-					if(count == null)
-						degreeCount.put(nodeId, 1);
-					else
-						degreeCount.put(nodeId, count + 1);
-				}
-			}
+		InDegreeTracker tracker = tracker();
+		if (tracker != null){
+			print(tracker.getHistogram());
+			return false;
 		}
 
-		// Map of the in-degree distribution. The key is the in-degree and the
-		// entry is the number of nodes having this distribution
-		Map<Integer, Integer> dist = new HashMap<Integer, Integer>();
-
-		// Fill the map with the in-degree distribution of each node
-		for (int i = 0; i < Network.size(); i++){
-			Long nodeId = Network.get(i).getID();
-			Integer degree = degreeCount.get(nodeId);
-			int value = 1;
-			if(dist.containsKey(degree)){
-				value = dist.get(degree) + 1;
+		if (snapshot == null)
+			snapshot = OverlaySnapshot.forObserver(prefix);
+		final int[] degrees = snapshot.getInDegrees();
+		final int[][] histograms = new int[workers.parts()][];
+
+		// Every thread makes the histogram of its share of the nodes
+		workers.run(degrees.length, new Workers.Body() {
+			public void run(int part, int from, int to) {
+				int[] histogram = new int[64];
+				for (int i = from; i < to; i++){
+					int degree = degrees[i];
+					if (degree >= histogram.length)
+						histogram = Arrays.copyOf(histogram, Math.max(degree + 1, 2 * histogram.length));
+					histogram[degree]++;
+				}
+				histograms[part] = histogram;
 			}
-			dist.put(degree, value);
-		}
-		
-		// Sort the distribution and print the result
-		dist.remove(null);
-		SortedSet<Integer> sortedKeys = new TreeSet<Integer>(dist.keySet());
-		for(int i = 0; i <= sortedKeys.last(); i++){
-			if(sortedKeys.contains(i))
-				System.out.println(dist.get(i));
-			else
-				System.out.println(0);
-		}
+		});
+
+		// Merge the histograms
+		int max = 0;
+		for (int[] histogram : histograms)
+			max = Math.max(max, histogram.length);
+		int[] dist = new int[max];
+		for (int[] histogram : histograms)
+			for (int i = 0; i < histogram.length; i++)
+				dist[i] += histogram[i];
+		print(dist);
 
 		return false;
 	}
 
+	/**
+	 * @return the tracker of the observed protocol, or null if it has none
+	 */
+	private InDegreeTracker tracker()
+	{
+		if (Network.size() == 0)
+			return null;
+		Object protocol = Network.get(0).getProtocol(pid);
+		if (protocol instanceof BasicShuffle)
+			return ((BasicShuffle)protocol).getTracker();
+		return null;
+	}
+
+	/**
+	 * Writes the number of nodes of each in-degree, up to the largest one.
+	 * Nodes nobody points to are left out, as they always were.
+	 */
+	private void print(int[] dist)
+	{
+		int last = dist.length - 1;
+		while (last > 0 && dist[last] == 0)
+			last--;
+		if (last > 0){
+			dist[0] = 0;
+			output.write(CommonState.getTime(), dist, last + 1);
+		}
+		output.endRun();
+	}
+
 }
@@ -0,0 +1,270 @@
+package no.uio.inf5040.reports;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import peersim.config.Configuration;
+import peersim.config.IllegalParameterException;
+import peersim.core.CommonState;
+import peersim.core.Scheduler;
+
+/**
+ * Where an observer writes its results.
+ *
+ * The output of an observer is configured in its control block. With the
+ * parameter file, the results go to that file, which is truncated when the
+ * simulation starts; otherwise they go to the standard output, as before.
+ * The parameter format is one of
+ *
+ *   text    the values of a series one per line, which gnuplot reads as
+ *           is, and records as "name: value value ..." lines (default)
+ *   csv     a header, then time,index,value lines for series and
+ *           time,value,value,... lines for records
+ *   binary  for every series or record, the time as a long, the number of
+ *           values as an int, then the values as ints for a series and as
+ *           doubles for a record, big-endian
+ *
+ * Results are gathered in a buffer and written through a channel when it
+ * is full and when the observer calls flush or endRun, at the end of its
+ * run, so an observation costs a few writes whatever its size.
+ *
+ * A file is closed by close, which endRun calls after the last run of the
+ * observer: its run after the end with FINAL set, otherwise the last one
+ * its step, from and until parameters schedule before the end time. The
+ * standard output is left open. When the simulation stops early, the file
+ * is complete but only closed at exit.
+ *
+ */
+public class ObserverOutput {
+
+	private static final String PAR_FILE = "file";
+	private static final String PAR_FORMAT = "format";
+
+	private static final int TEXT = 0;
+	private static final int CSV = 1;
+	private static final int BINARY = 2;
+
+	private final String name;
+
+	private final int format;
+
+	private final WritableByteChannel channel;
+
+	// Whether the channel writes to a file, and is closed with the output
+	private final boolean file;
+
+	// The runs of the observer, to tell the last one
+	private final Scheduler schedule;
+
+	private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+
+	// Whether the header of the CSV file has been written
+	private boolean header;
+
+	public ObserverOutput(String prefix)
+	{
+		name = prefix;
+		String f = Configuration.getString(prefix + "." + PAR_FORMAT, "text");
+		if(f.equals("text")){
+			format = TEXT;
+		}else if(f.equals("csv")){
+			format = CSV;
+		}else if(f.equals("binary")){
+			format = BINARY;
+		}else{
+			throw new IllegalParameterException(prefix + "." + PAR_FORMAT,
+					"must be text, csv or binary");
+		}
+		schedule = new Scheduler(prefix);
+		String path = Configuration.getString(prefix + "." + PAR_FILE, null);
+		file = path != null;
+		if(!file){
+			if(format == BINARY){
+				throw new IllegalParameterException(prefix + "." + PAR_FILE,
+						"is required by the binary format");
+			}
+			channel = Channels.newChannel(System.out);
+		}else{
+			try {
+				File parent = new File(path).getAbsoluteFile().getParentFile();
+				if(parent != null){
+					parent.mkdirs();
+				}
+				FileChannel c = new RandomAccessFile(path, "rw").getChannel();
+				try {
+					c.truncate(0);
+				} catch (IOException e) {
+					c.close();
+					throw e;
+				}
+				channel = c;
+			} catch (IOException e) {
+				throw new IllegalParameterException(prefix + "." + PAR_FILE,
+						"cannot be opened: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Writes a series of values, such as a distribution, where the index of
+	 * a value is its position.
+	 */
+	public void write(long time, int[] values, int length) {
+		switch(format){
+		case TEXT:
+			for(int i = 0; i < length; i++){
+				put(Integer.toString(values[i]));
+				put('\n');
+			}
+			break;
+		case CSV:
+			if(!header){
+				put("time,index,value\n");
+				header = true;
+			}
+			for(int i = 0; i < length; i++){
+				put(Long.toString(time));
+				put(',');
+				put(Integer.toString(i));
+				put(',');
+				put(Integer.toString(values[i]));
+				put('\n');
+			}
+			break;
+		default:
+			reserve(12);
+			buffer.putLong(time);
+			buffer.putInt(length);
+			for(int i = 0; i < length; i++){
+				reserve(4);
+				buffer.putInt(values[i]);
+			}
+		}
+	}
+
+	/**
+	 * Writes a record of named values. The names are only written in the
+	 * text format, and in the header of the CSV format.
+	 */
+	public void write(long time, String[] names, double[] values) {
+		switch(format){
+		case TEXT:
+			put(name);
+			put(':');
+			for(int i = 0; i < values.length; i++){
+				put(' ');
+				put(Double.toString(values[i]));
+			}
+			put('\n');
+			break;
+		case CSV:
+			if(!header){
+				put("time");
+				for(int i = 0; i < names.length; i++){
+					put(',');
+					put(names[i]);
+				}
+				put('\n');
+				header = true;
+			}
+			put(Long.toString(time));
+			for(int i = 0; i < values.length; i++){
+				put(',');
+				put(Double.toString(values[i]));
+			}
+			put('\n');
+			break;
+		default:
+			reserve(12);
+			buffer.putLong(time);
+			buffer.putInt(values.length);
+			for(int i = 0; i < values.length; i++){
+				reserve(8);
+				buffer.putDouble(values[i]);
+			}
+		}
+	}
+
+	/**
+	 * Writes what is left in the buffer.
+	 */
+	public void flush() {
+		buffer.flip();
+		try {
+			while(buffer.hasRemaining()){
+				channel.write(buffer);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(name + ": cannot write the results", e);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Writes what is left in the buffer at the end of a run of the observer,
+	 * and closes the output if it was the last one.
+	 */
+	public void endRun() {
+		long time = CommonState.getTime();
+		long end = CommonState.getEndTime();
+		boolean last;
+		if(CommonState.getPhase() == CommonState.POST_SIMULATION){
+			last = true;
+		}else{
+			last = !schedule.fin && end >= 0 && time + schedule.step >= Math.min(end, schedule.until);
+		}
+		if(last){
+			close();
+		}else{
+			flush();
+		}
+	}
+
+	/**
+	 * Writes what is left in the buffer and closes the file. Nothing can be
+	 * written after. The standard output is only flushed.
+	 */
+	public void close() {
+		flush();
+		if(file && channel.isOpen()){
+			try {
+				channel.close();
+			} catch (IOException e) {
+				throw new RuntimeException(name + ": cannot close the results", e);
+			}
+		}
+	}
+
+	/**
+	 * @return whether the output can still be written to
+	 */
+	boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	/**
+	 * Makes room for the given number of bytes in the buffer.
+	 */
+	private void reserve(int bytes) {
+		if(buffer.remaining() < bytes){
+			flush();
+		}
+	}
+
+	private void put(char c) {
+		reserve(1);
+		buffer.put((byte) c);
+	}
+
+	private void put(String s) {
+		for(int i = 0; i < s.length(); i++){
+			put(s.charAt(i));
+		}
+	}
+
+}
@@ -0,0 +1,500 @@
+package no.uio.inf5040.reports;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import no.uio.inf5040.gossip.BasicShuffle;
+import no.uio.inf5040.gossip.CacheStore;
+import peersim.config.Configuration;
+import peersim.core.CommonState;
+import peersim.core.Control;
+import peersim.core.Linkable;
+import peersim.core.Network;
+import peersim.core.Node;
+
+/**
+ * Snapshot of the overlay as compressed sparse rows, which the observers
+ * share instead of each walking the caches of all the nodes.
+ *
+ * Run as a control, it takes the snapshot every time it is run. An
+ * observer given the name of this control in its snapshot parameter reads
+ * the overlay from it; the snapshot is taken again when it is older than
+ * the current time. An observer without that parameter keeps a snapshot of
+ * its own, taken in the same way.
+ *
+ * The snapshot is not taken again at the same time, whatever changed the
+ * caches since. A control that changes them, such as CycleShuffle or
+ * CycleSweep, must then run before this control and the observers at the
+ * same time, so list it first in order.control: otherwise the observers see
+ * the overlay as it was before the cycle, and those run before the control
+ * see a different overlay than those run after.
+ *
+ * The rows of the out-neighbors are read from the caches, directly from
+ * the store for BasicShuffle, and the rows of the in-neighbors and of the
+ * undirected overlay, with or without repeated neighbors, are derived from
+ * them the first time they are asked for. Only the neighbors of the nodes
+ * that are up are taken. All the rows are built in parallel, over the
+ * threads of the snapshot.
+ *
+ */
+public class OverlaySnapshot implements Control
+{
+	private static final String PAR_PID = "protocol";
+	private static final String PAR_SNAPSHOT = "snapshot";
+
+	// The snapshots run as controls, by name
+	private static final Map<String, OverlaySnapshot> shared = new HashMap<String, OverlaySnapshot>();
+
+	/**
+	 * Rows of neighbors: the neighbors of node u are
+	 * targets[offsets[u]] to targets[offsets[u + 1] - 1].
+	 */
+	public static class Rows
+	{
+		public final int size;
+		public final int[] offsets;
+		public final int[] targets;
+
+		Rows(int size, int[] offsets, int[] targets)
+		{
+			this.size = size;
+			this.offsets = offsets;
+			this.targets = targets;
+		}
+
+		public int degree(int u)
+		{
+			return offsets[u + 1] - offsets[u];
+		}
+	}
+
+	private final int pid;
+
+	private final Workers workers;
+
+	// The time the snapshot was taken, or -1
+	private long time = -1;
+
+	private Rows out;
+	private Rows in;
+	private Rows undirected;
+	private Rows simple;
+
+	// The in-degree of every node, or null
+	private int[] inDegrees;
+
+	// The number of edges of each thread's share of the sources to every
+	// node, and whether they are counted for the current snapshot
+	private int[][] counts;
+	private boolean counted;
+
+	// The arrays of the last rows, reused by the next ones
+	private int[] inOffsets;
+	private int[] inTargets;
+	private int[] undirectedOffsets;
+	private int[] undirectedTargets;
+	private int[] simpleOffsets;
+	private int[] simpleTargets;
+
+	public OverlaySnapshot(String prefix)
+	{
+		this(Configuration.getPid(prefix + "." + PAR_PID), new Workers(prefix));
+		synchronized (shared){
+			shared.put(prefix, this);
+		}
+	}
+
+	private OverlaySnapshot(int pid, Workers workers)
+	{
+		this.pid = pid;
+		this.workers = workers;
+	}
+
+	/**
+	 * Returns the snapshot an observer reads: the control named by its
+	 * snapshot parameter, or a snapshot of its own of the protocol given
+	 * by its protocol parameter. Controls are created before they run, so
+	 * observers call this on their first run.
+	 */
+	public static OverlaySnapshot forObserver(String prefix)
+	{
+		String name = Configuration.getString(prefix + "." + PAR_SNAPSHOT, null);
+		if (name == null)
+			return new OverlaySnapshot(Configuration.getPid(prefix + "." + PAR_PID),
+					new Workers(prefix));
+		synchronized (shared){
+			OverlaySnapshot snapshot = shared.get("control." + name);
+			if (snapshot == null)
+				throw new IllegalStateException(prefix + "." + PAR_SNAPSHOT
+						+ ": no control named " + name);
+			return snapshot;
+		}
+	}
+
+	public boolean execute()
+	{
+		take();
+		return false;
+	}
+
+	/**
+	 * @return the out-neighbors of every node, as of the first run of the
+	 * snapshot or of an observer reading it at the current time
+	 */
+	public Rows getOut()
+	{
+		if (time != CommonState.getTime() || out == null)
+			take();
+		return out;
+	}
+
+	/**
+	 * @return the in-degree of every node, as of the current time
+	 */
+	public int[] getInDegrees()
+	{
+		final Rows rows = getOut();
+		if (inDegrees == null){
+			if (in != null){
+				inDegrees = new int[rows.size];
+				for (int u = 0; u < rows.size; u++)
+					inDegrees[u] = in.degree(u);
+			}
+			else {
+				count(rows);
+				final int[] degrees = new int[rows.size];
+				workers.run(rows.size, new Workers.Body() {
+					public void run(int part, int from, int to) {
+						for (int u = from; u < to; u++){
+							int degree = 0;
+							for (int[] count : counts)
+								degree += count[u];
+							degrees[u] = degree;
+						}
+					}
+				});
+				inDegrees = degrees;
+			}
+		}
+		return inDegrees;
+	}
+
+	/**
+	 * @return the in-neighbors of every node, as of the current time
+	 */
+	public Rows getIn()
+	{
+		Rows rows = getOut();
+		if (in == null)
+			in = transpose(rows);
+		return in;
+	}
+
+	/**
+	 * @return the neighbors of every node in either direction, as of the
+	 * current time. A neighbor in both directions appears twice.
+	 */
+	public Rows getUndirected()
+	{
+		Rows rows = getOut();
+		if (undirected == null)
+			undirected = merge(rows, getIn());
+		return undirected;
+	}
+
+	/**
+	 * @return the neighbors of every node in either direction, as of the
+	 * current time, each once and sorted by index
+	 */
+	public Rows getSimple()
+	{
+		Rows rows = getOut();
+		if (simple == null)
+			simple = union(rows, getIn());
+		return simple;
+	}
+
+	/**
+	 * Takes the snapshot of the out-neighbors, and forgets the rows derived
+	 * from the previous one.
+	 */
+	private void take()
+	{
+		final int size = Network.size();
+		final int[] offsets = out != null && out.size == size ? out.offsets : new int[size + 1];
+		final int parts = workers.parts();
+		final long[] totals = new long[parts];
+
+		// The degree of every node, then the start of every row
+		workers.run(size, new Workers.Body() {
+			public void run(int part, int from, int to) {
+				long total = 0;
+				for (int u = from; u < to; u++){
+					offsets[u + 1] = degree(Network.get(u));
+					total += offsets[u + 1];
+				}
+				totals[part] = total;
+			}
+		});
+		prefix(offsets, totals, size);
+
+		final int[] targets = out != null && out.targets.length >= offsets[size]
+				? out.targets : new int[offsets[size]];
+		workers.run(size, new Workers.Body() {
+			public void run(int part, int from, int to) {
+				for (int u = from; u < to; u++){
+					Node node = Network.get(u);
+					if (!node.isUp())
+						continue;
+					Linkable linkable = (Linkable) node.getProtocol(pid);
+					int k = offsets[u];
+					int degree = offsets[u + 1] - k;
+					if (linkable instanceof BasicShuffle){
+						BasicShuffle shuffle = (BasicShuffle) linkable;
+						CacheStore store = shuffle.getStore();
+						int slot = shuffle.getSlot();
+						for (int j = 0; j < degree; j++)
+							targets[k + j] = store.getNeighbor(slot, j);
+					}
+					else {
+						for (int j = 0; j < degree; j++)
+							targets[k + j] = linkable.getNeighbor(j).getIndex();
+					}
+				}
+			}
+		});
+
+		out = new Rows(size, offsets, targets);
+		in = null;
+		undirected = null;
+		simple = null;
+		inDegrees = null;
+		counted = false;
+		time = CommonState.getTime();
+	}
+
+	/**
+	 * Turns the degrees in offsets[1..size] into the starts of the rows, in
+	 * parallel over the same parts as the degrees were computed, given the
+	 * sum of the degrees of each part.
+	 */
+	private void prefix(final int[] offsets, long[] totals, int size)
+	{
+		final int[] starts = new int[totals.length];
+		long sum = 0;
+		for (int i = 0; i < totals.length; i++){
+			starts[i] = (int) sum;
+			sum += totals[i];
+		}
+		if (sum > Integer.MAX_VALUE)
+			throw new IllegalStateException("too many edges for a snapshot: " + sum);
+		offsets[0] = 0;
+		workers.run(size, new Workers.Body() {
+			public void run(int part, int from, int to) {
+				int start = starts[part];
+				for (int u = from; u < to; u++){
+					start += offsets[u + 1];
+					offsets[u + 1] = start;
+				}
+			}
+		});
+	}
+
+	private int degree(Node node)
+	{
+		if (!node.isUp())
+			return 0;
+		Linkable linkable = (Linkable) node.getProtocol(pid);
+		if (linkable instanceof BasicShuffle){
+			BasicShuffle shuffle = (BasicShuffle) linkable;
+			return shuffle.getStore().degree(shuffle.getSlot());
+		}
+		return linkable.degree();
+	}
+
+	/**
+	 * Builds the reverse of the given rows. Every thread counts the edges of
+	 * its share of the sources into its own array, and then writes them at
+	 * the positions left by the threads before it, so the rows come out
+	 * sorted by source without any synchronization.
+	 */
+	private Rows transpose(final Rows rows)
+	{
+		final int size = rows.size;
+		final int parts = workers.parts();
+		count(rows);
+
+		// The start of each row, and of the share of each thread within it,
+		// which is where the counts are turned into cursors
+		final int[] offsets = inOffsets = reuse(inOffsets, size + 1);
+		final long[] totals = new long[parts];
+		workers.run(size, new Workers.Body() {
+			public void run(int part, int from, int to) {
+				long total = 0;
+				for (int u = from; u < to; u++){
+					int degree = 0;
+					for (int i = 0; i < parts; i++){
+						int c = counts[i][u];
+						counts[i][u] = degree;
+						degree += c;
+					}
+					offsets[u + 1] = degree;
+					total += degree;
+				}
+				totals[part] = total;
+			}
+		});
+		prefix(offsets, totals, size);
+		counted = false;
+
+		final int[] targets = inTargets = reuse(inTargets, offsets[size]);
+		workers.run(size, new Workers.Body() {
+			public void run(int part, int from, int to) {
+				int[] cursor = counts[part];
+				for (int v = from; v < to; v++)
+					for (int k = rows.offsets[v]; k < rows.offsets[v + 1]; k++){
+						int u = rows.targets[k];
+						targets[offsets[u] + cursor[u]++] = v;
+					}
+			}
+		});
+		return new Rows(size, offsets, targets);
+	}
+
+	/**
+	 * Builds the rows holding the rows of a and then those of b.
+	 */
+	private Rows merge(final Rows a, final Rows b)
+	{
+		final int size = a.size;
+		final int[] offsets = undirectedOffsets = reuse(undirectedOffsets, size + 1);
+		final long[] totals = new long[workers.parts()];
+		workers.run(size, new Workers.Body() {
+			public void run(int part, int from, int to) {
+				long total = 0;
+				for (int u = from; u < to; u++){
+					offsets[u + 1] = a.degree(u) + b.degree(u);
+					total += offsets[u + 1];
+				}
+				totals[part] = total;
+			}
+		});
+		prefix(offsets, totals, size);
+
+		final int[] targets = undirectedTargets = reuse(undirectedTargets, offsets[size]);
+		workers.run(size, new Workers.Body() {
+			public void run(int part, int from, int to) {
+				for (int u = from; u < to; u++){
+					int k = offsets[u];
+					int da = a.degree(u);
+					System.arraycopy(a.targets, a.offsets[u], targets, k, da);
+					System.arraycopy(b.targets, b.offsets[u], targets, k + da, b.degree(u));
+				}
+			}
+		});
+		return new Rows(size, offsets, targets);
+	}
+
+	/**
+	 * Builds the rows holding the union of the rows of a and b, sorted. The
+	 * rows of b must be sorted, as they are when b is the transpose of a.
+	 */
+	private Rows union(final Rows a, final Rows b)
+	{
+		final int size = a.size;
+		final int parts = workers.parts();
+		final int[] offsets = simpleOffsets = reuse(simpleOffsets, size + 1);
+		final long[] totals = new long[parts];
+		final int[][] buffers = new int[parts][];
+		workers.run(size, new Workers.Body() {
+			public void run(int part, int from, int to) {
+				int[] buffer = new int[16];
+				long total = 0;
+				for (int u = from; u < to; u++){
+					if (buffer.length < a.degree(u))
+						buffer = new int[2 * a.degree(u)];
+					offsets[u + 1] = union(a, b, u, buffer, null, 0);
+					total += offsets[u + 1];
+				}
+				totals[part] = total;
+				buffers[part] = buffer;
+			}
+		});
+		prefix(offsets, totals, size);
+
+		final int[] targets = simpleTargets = reuse(simpleTargets, offsets[size]);
+		workers.run(size, new Workers.Body() {
+			public void run(int part, int from, int to) {
+				int[] buffer = buffers[part];
+				for (int u = from; u < to; u++)
+					union(a, b, u, buffer, targets, offsets[u]);
+			}
+		});
+		return new Rows(size, offsets, targets);
+	}
+
+	/**
+	 * Merges the sorted row u of a, sorted in the given buffer, with the
+	 * sorted row u of b, into targets from the given position unless it is
+	 * null.
+	 * @return the number of neighbors in the union
+	 */
+	private static int union(Rows a, Rows b, int u, int[] buffer, int[] targets, int k)
+	{
+		int na = a.degree(u);
+		System.arraycopy(a.targets, a.offsets[u], buffer, 0, na);
+		Arrays.sort(buffer, 0, na);
+		int i = 0;
+		int j = b.offsets[u];
+		int end = b.offsets[u + 1];
+		int n = 0;
+		int last = -1;
+		while (i < na || j < end){
+			int v;
+			if (j == end || (i < na && buffer[i] <= b.targets[j]))
+				v = buffer[i++];
+			else
+				v = b.targets[j++];
+			if (v != last){
+				if (targets != null)
+					targets[k + n] = v;
+				n++;
+				last = v;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Counts the edges of each thread's share of the sources to every node,
+	 * unless they are already counted for the current snapshot.
+	 */
+	private void count(final Rows rows)
+	{
+		if (counted)
+			return;
+		final int size = rows.size;
+		if (counts == null || counts.length != workers.parts() || counts[0].length < size)
+			counts = new int[workers.parts()][size];
+		workers.run(size, new Workers.Body() {
+			public void run(int part, int from, int to) {
+				int[] count = counts[part];
+				Arrays.fill(count, 0, size, 0);
+				for (int k = rows.offsets[from]; k < rows.offsets[to]; k++)
+					count[rows.targets[k]]++;
+			}
+		});
+		counted = true;
+	}
+
+	/**
+	 * @return the given array if it holds at least length elements, or a new
+	 * one
+	 */
+	private static int[] reuse(int[] array, int length)
+	{
+		return array != null && array.length >= length ? array : new int[length];
+	}
+
+}
@@ -0,0 +1,166 @@
+package no.uio.inf5040.reports;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import peersim.config.Configuration;
+import peersim.core.CommonState;
+import peersim.core.Control;
+import peersim.core.Network;
+
+/**
+ * Reports whether the overlay is split, with the number of its connected
+ * components and the size of the largest one.
+ *
+ * The components are those of the overlay taken as undirected, over the
+ * nodes that are up, and are found with a union-find of the nodes over the
+ * edges of the snapshot of the observer, see OverlaySnapshot. The edges are
+ * split over several threads, which link the roots of the sets of their
+ * ends with compare-and-set operations, always from the larger index to
+ * the smaller, and halve the paths as they go up. Every edge is looked at
+ * once, without any queue, which makes the check much cheaper than a
+ * breadth-first search such as that of ConnectivityObserver.
+ *
+ * Reports the number of components and the number of nodes of the largest
+ * one, written to the output of the observer, see ObserverOutput. With
+ * stop set, the simulation ends as soon as the overlay is split, after
+ * printing the time of the split on the standard error.
+ *
+ */
+public class PartitionObserver implements Control
+{
+	private static final String PAR_STOP = "stop";
+
+	private static final String[] NAMES = { "components", "giant" };
+
+	private final String prefix;
+	private final boolean stop;
+
+	private final Workers workers;
+
+	private final ObserverOutput output;
+
+	// The overlay, set on the first run
+	private OverlaySnapshot snapshot;
+
+	// The parent of every node in the union-find, and whether it is up
+	private AtomicIntegerArray parents = new AtomicIntegerArray(0);
+	private boolean[] up = new boolean[0];
+
+	// The number of nodes in the set of every root
+	private int[] sizes = new int[0];
+
+	public PartitionObserver(String prefix)
+	{
+		this.prefix = prefix;
+		this.stop = Configuration.getBoolean(prefix + "." + PAR_STOP, false);
+		this.workers = new Workers(prefix);
+		this.output = new ObserverOutput(prefix);
+	}
+
+	public boolean execute()
+	{
+		if (snapshot == null)
+			snapshot = OverlaySnapshot.forObserver(prefix);
+		final OverlaySnapshot.Rows rows = snapshot.getOut();
+		final int size = rows.size;
+		if (size == 0){
+			output.endRun();
+			return false;
+		}
+		if (parents.length() != size){
+			parents = new AtomicIntegerArray(size);
+			up = new boolean[size];
+			sizes = new int[size];
+		}
+		final AtomicIntegerArray parents = this.parents;
+		final boolean[] up = this.up;
+
+		workers.run(size, new Workers.Body() {
+			public void run(int part, int from, int to) {
+				for (int u = from; u < to; u++){
+					parents.set(u, u);
+					up[u] = Network.get(u).isUp();
+				}
+			}
+		});
+		workers.run(size, new Workers.Body() {
+			public void run(int part, int from, int to) {
+				for (int u = from; u < to; u++){
+					if (!up[u])
+						continue;
+					for (int k = rows.offsets[u]; k < rows.offsets[u + 1]; k++){
+						int v = rows.targets[k];
+						if (up[v])
+							union(parents, u, v);
+					}
+				}
+			}
+		});
+
+		// The size of every set, counted at its root
+		int[] sizes = this.sizes;
+		for (int u = 0; u < size; u++)
+			sizes[u] = 0;
+		int components = 0;
+		int giant = 0;
+		for (int u = 0; u < size; u++){
+			if (!up[u])
+				continue;
+			int root = find(parents, u);
+			if (root == u)
+				components++;
+			if (++sizes[root] > giant)
+				giant = sizes[root];
+		}
+
+		long time = CommonState.getTime();
+		output.write(time, NAMES, new double[] { components, giant });
+		if (stop && components > 1){
+			output.close();
+			System.err.println(prefix + ": the overlay is split in " + components
+					+ " components at time " + time);
+			return true;
+		}
+		output.endRun();
+		return false;
+	}
+
+	/**
+	 * @return the root of the set of x, halving the path to it
+	 */
+	private static int find(AtomicIntegerArray parents, int x)
+	{
+		while (true){
+			int p = parents.get(x);
+			if (p == x)
+				return x;
+			int g = parents.get(p);
+			if (p != g)
+				parents.compareAndSet(x, p, g);
+			x = g;
+		}
+	}
+
+	/**
+	 * Joins the sets of a and b, linking the root with the larger index to
+	 * the other one, so the links never make a cycle whatever the order of
+	 * the threads.
+	 */
+	private static void union(AtomicIntegerArray parents, int a, int b)
+	{
+		while (true){
+			a = find(parents, a);
+			b = find(parents, b);
+			if (a == b)
+				return;
+			if (a < b){
+				int t = a;
+				a = b;
+				b = t;
+			}
+			if (parents.compareAndSet(a, a, b))
+				return;
+		}
+	}
+
+}
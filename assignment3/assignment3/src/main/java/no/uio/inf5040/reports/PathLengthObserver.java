@@ -0,0 +1,163 @@
+package no.uio.inf5040.reports;
+
+import java.util.Random;
+
+import peersim.config.Configuration;
+import peersim.core.CommonState;
+import peersim.core.Control;
+
+/**
+ * Reports the average path length of the overlay, with a multi-source
+ * breadth-first search that runs 64 sources at once.
+ *
+ * Every node has a 64-bit word per set of 64 sources: the sources that
+ * have already reached it, and those that reached it at the last level.
+ * A level then costs a pass over the edges, where each node ors the words
+ * of its in-neighbors, and the nodes are split over several threads, each
+ * writing only the words of its own nodes. With sources set to 0 all the
+ * nodes are sources and the values are exact; otherwise that many sources,
+ * 640 by default, are drawn at random, like the nl parameter of GraphStats.
+ * They are drawn from a random stream of the observer, seeded with its seed
+ * parameter, random.seed by default, so that the values do not depend on
+ * the other users of CommonState.r, nor these on the observer.
+ *
+ * Reports the average distance over the pairs connected by a path, the
+ * largest distance found, and the fraction of the pairs connected by a
+ * path, written to the output of the observer, see ObserverOutput. The
+ * overlay is read from the snapshot of the observer, see OverlaySnapshot.
+ * With undir set, the edges are followed in both directions, as GraphStats
+ * does with undir.
+ *
+ */
+public class PathLengthObserver implements Control
+{
+	private static final String PAR_SOURCES = "sources";
+	private static final String PAR_UNDIR = "undir";
+	private static final String PAR_SEED = "seed";
+
+	private static final String[] NAMES = { "avgpath", "maxpath", "reachable" };
+
+	private final String prefix;
+	private final int sources;
+	private final boolean undir;
+
+	// The stream the sources are drawn from
+	private final Random random;
+
+	private final Workers workers;
+
+	private final ObserverOutput output;
+
+	// The overlay, set on the first run
+	private OverlaySnapshot snapshot;
+
+	// The sources that reached each node, and those of the current and the
+	// next level
+	private long[] seen = new long[0];
+	private long[] frontier = new long[0];
+	private long[] next = new long[0];
+
+	public PathLengthObserver(String prefix)
+	{
+		this.prefix = prefix;
+		this.sources = Configuration.getInt(prefix + "." + PAR_SOURCES, 640);
+		this.undir = Configuration.getBoolean(prefix + "." + PAR_UNDIR, false);
+		this.random = new Random(Configuration.getLong(prefix + "." + PAR_SEED,
+				Configuration.getLong(CommonState.PAR_SEED, System.currentTimeMillis())));
+		this.workers = new Workers(prefix);
+		this.output = new ObserverOutput(prefix);
+	}
+
+	public boolean execute()
+	{
+		if (snapshot == null)
+			snapshot = OverlaySnapshot.forObserver(prefix);
+		OverlaySnapshot.Rows rows = undir ? snapshot.getUndirected() : snapshot.getIn();
+		final int size = rows.size;
+		if (size == 0){
+			output.endRun();
+			return false;
+		}
+		final int[] offsets = rows.offsets;
+		final int[] targets = rows.targets;
+		if (seen.length != size){
+			seen = new long[size];
+			frontier = new long[size];
+			next = new long[size];
+		}
+
+		// The sources, drawn with a partial Fisher-Yates shuffle
+		int count = sources <= 0 ? size : Math.min(sources, size);
+		int[] order = new int[size];
+		for (int i = 0; i < size; i++)
+			order[i] = i;
+		if (count < size){
+			for (int i = 0; i < count; i++){
+				int j = i + random.nextInt(size - i);
+				int t = order[j];
+				order[j] = order[i];
+				order[i] = t;
+			}
+		}
+
+		final int parts = workers.parts();
+		final long[] sums = new long[parts];
+		final long[] pairs = new long[parts];
+		final boolean[] active = new boolean[parts];
+		long totalSum = 0;
+		long totalPairs = 0;
+		int max = 0;
+		for (int batch = 0; batch < count; batch += 64){
+			int n = Math.min(64, count - batch);
+			for (int i = 0; i < size; i++){
+				seen[i] = 0;
+				frontier[i] = 0;
+			}
+			for (int i = 0; i < n; i++){
+				int s = order[batch + i];
+				seen[s] |= 1L << i;
+				frontier[s] |= 1L << i;
+			}
+			for (int level = 1; ; level++){
+				final int d = level;
+				workers.run(size, new Workers.Body() {
+					public void run(int part, int from, int to) {
+						long reached = 0;
+						for (int u = from; u < to; u++){
+							long words = 0;
+							for (int k = offsets[u]; k < offsets[u + 1]; k++)
+								words |= frontier[targets[k]];
+							words &= ~seen[u];
+							next[u] = words;
+							seen[u] |= words;
+							reached += Long.bitCount(words);
+						}
+						pairs[part] += reached;
+						sums[part] += reached * d;
+						active[part] = reached > 0;
+					}
+				});
+				boolean any = false;
+				for (int i = 0; i < parts; i++)
+					any |= active[i];
+				if (!any)
+					break;
+				max = Math.max(max, level);
+				long[] t = frontier;
+				frontier = next;
+				next = t;
+			}
+		}
+		for (int i = 0; i < parts; i++){
+			totalSum += sums[i];
+			totalPairs += pairs[i];
+		}
+
+		double avg = totalPairs == 0 ? 0 : (double) totalSum / totalPairs;
+		double reachable = size == 1 ? 1 : (double) totalPairs / ((double) count * (size - 1));
+		output.write(CommonState.getTime(), NAMES, new double[] { avg, max, reachable });
+		output.endRun();
+		return false;
+	}
+
+}
@@ -0,0 +1,62 @@
+package no.uio.inf5040.reports;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import no.uio.inf5040.gossip.BasicShuffle;
+import no.uio.inf5040.gossip.CacheStore;
+import peersim.config.Configuration;
+import peersim.core.CommonState;
+import peersim.core.Control;
+import peersim.core.Network;
+
+/**
+ * Reports the memory the caches of BasicShuffle take, whether every node
+ * owns a store or all share one, see the parameter store of the protocol.
+ *
+ * Reports the number of stores, then the bytes they take in the Java heap
+ * and outside it, per node, written to the output of the observer, see
+ * ObserverOutput. Run once, at the start or at the end, it tells the
+ * footprint of a configuration without a profiler.
+ *
+ */
+public class StoreObserver implements Control
+{
+	private static final String PAR_PID = "protocol";
+
+	private static final String[] NAMES = { "stores", "heap", "offheap" };
+
+	private final int pid;
+
+	private final ObserverOutput output;
+
+	public StoreObserver(String prefix)
+	{
+		this.pid = Configuration.getPid(prefix + "." + PAR_PID);
+		this.output = new ObserverOutput(prefix);
+	}
+
+	public boolean execute()
+	{
+		int size = Network.size();
+		if (size == 0){
+			output.endRun();
+			return false;
+		}
+		Map<CacheStore, Boolean> stores = new IdentityHashMap<CacheStore, Boolean>();
+		long heap = 0;
+		long offHeap = 0;
+		for (int i = 0; i < size; i++){
+			CacheStore store = ((BasicShuffle) Network.get(i).getProtocol(pid)).getStore();
+			if (stores.put(store, Boolean.TRUE) == null){
+				heap += store.heapBytesPerSlot() * store.slots();
+				offHeap += store.offHeapBytesPerSlot() * store.slots();
+			}
+		}
+		output.write(CommonState.getTime(), NAMES, new double[] { stores.size(),
+				(double) heap / size, (double) offHeap / size });
+		output.endRun();
+		return false;
+	}
+
+}
@@ -0,0 +1,63 @@
+package no.uio.inf5040.reports;
+
+import no.uio.inf5040.sim.BandwidthTransport;
+import peersim.config.Configuration;
+import peersim.core.CommonState;
+import peersim.core.Control;
+import peersim.core.Network;
+
+/**
+ * Reports the bytes sent through a BandwidthTransport since the last run,
+ * so that run every cycle it gives the traffic of every cycle.
+ *
+ * Reports the bytes sent by all the nodes, their mean per node, the most
+ * bytes sent and the most received by a node, then the bytes and the
+ * messages sent since the start, against which the other observers can be
+ * plotted to measure convergence per byte. The values are written to the
+ * output of the observer, see ObserverOutput. The counts of the transport
+ * are set back to 0 after every run.
+ *
+ */
+public class TrafficObserver implements Control
+{
+	private static final String PAR_PID = "protocol";
+
+	private static final String[] NAMES = { "bytes", "mean", "maxsent", "maxreceived",
+		"totalbytes", "totalmessages" };
+
+	private final int pid;
+
+	private final ObserverOutput output;
+
+	public TrafficObserver(String prefix)
+	{
+		this.pid = Configuration.getPid(prefix + "." + PAR_PID);
+		this.output = new ObserverOutput(prefix);
+	}
+
+	public boolean execute()
+	{
+		int size = Network.size();
+		if (size == 0){
+			output.endRun();
+			return false;
+		}
+		BandwidthTransport transport = (BandwidthTransport) Network.get(0).getProtocol(pid);
+		long[] sent = transport.getSent();
+		long[] received = transport.getReceived();
+		long bytes = 0;
+		long maxSent = 0;
+		long maxReceived = 0;
+		for (int i = 0; i < Math.min(size, sent.length); i++){
+			bytes += sent[i];
+			maxSent = Math.max(maxSent, sent[i]);
+			maxReceived = Math.max(maxReceived, received[i]);
+		}
+		output.write(CommonState.getTime(), NAMES, new double[] { bytes, (double) bytes / size,
+				maxSent, maxReceived, transport.getTotal(), transport.getMessages() });
+		output.endRun();
+		transport.reset();
+		return false;
+	}
+
+}
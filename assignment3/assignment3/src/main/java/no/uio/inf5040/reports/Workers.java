@@ -0,0 +1,94 @@
+package no.uio.inf5040.reports;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import peersim.config.Configuration;
+
+/**
+ * Fork-join pool the observers split their work over.
+ *
+ * A range of indices, usually the nodes of the network, is cut into one
+ * contiguous part per thread, and each part is handed to the body along
+ * with its number, so that the body can keep its partial results apart and
+ * merge them once all the parts are done. The number of threads is read
+ * from the threads parameter of the observer, and defaults to the number of
+ * processors.
+ *
+ */
+public class Workers {
+
+	private static final String PAR_THREADS = "threads";
+
+	/**
+	 * The work done on a part of a range.
+	 */
+	public interface Body {
+
+		/**
+		 * @param part the number of the part, below parts()
+		 * @param from the first index of the part
+		 * @param to the index after the last one of the part
+		 */
+		void run(int part, int from, int to);
+
+	}
+
+	private final int threads;
+
+	private final ForkJoinPool pool;
+
+	public Workers(String prefix)
+	{
+		threads = Math.max(1, Configuration.getInt(prefix + "." + PAR_THREADS,
+				Runtime.getRuntime().availableProcessors()));
+		pool = threads == 1 ? null : new ForkJoinPool(threads);
+	}
+
+	/**
+	 * @return the number of parts a range is cut into
+	 */
+	public int parts() {
+		return threads;
+	}
+
+	/**
+	 * Runs the body on all the parts of [0, n), and waits for them.
+	 */
+	public void run(int n, final Body body) {
+		if(pool == null){
+			body.run(0, 0, n);
+			return;
+		}
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(threads);
+		for(int i = 0; i < threads; i++){
+			final int part = i;
+			final int from = (int) ((long) n * i / threads);
+			final int to = (int) ((long) n * (i + 1) / threads);
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					body.run(part, from, to);
+					return null;
+				}
+			});
+		}
+		try {
+			for(Future<Void> future : pool.invokeAll(tasks)){
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException){
+				throw (RuntimeException) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+}
@@ -0,0 +1,261 @@
+package no.uio.inf5040.sim;
+
+import java.util.Arrays;
+
+import no.uio.inf5040.gossip.GossipMessage;
+import peersim.config.Configuration;
+import peersim.config.IllegalParameterException;
+import peersim.core.CommonState;
+import peersim.core.Node;
+import peersim.edsim.EDProtocol;
+import peersim.transport.Transport;
+
+/**
+ * Transport adding the time to push the bytes of a message through the
+ * links of its ends to the latency of another transport, and counting the
+ * bytes sent and received by every node.
+ *
+ * The size of a message is the overhead of a packet, 28 bytes by default
+ * for the headers of UDP over IPv4, plus the size of its payload, given by
+ * serializedSize for a GossipMessage and 0 for any other message. Every
+ * node has an uplink of uplink bytes per time unit and a downlink of
+ * downlink bytes per time unit, unlimited when not set. A message waits
+ * for the messages before it on the uplink of its sender, takes its size
+ * divided by the uplink to be sent, is then handed to the underlying
+ * transport, then waits and takes its time on the downlink of its receiver
+ * in the same way. The message goes through the send of the underlying
+ * transport wrapped in a packet addressed to this protocol, so that the
+ * transport decides when it arrives and whether it does, as
+ * UnreliableTransport does, and the packet is unwrapped at the receiver.
+ * The bytes received are counted then, so lost messages are not. With
+ * unlimited links the delays are those of the underlying transport, drawn
+ * in the same order.
+ *
+ * The transport has no state per node of its own: the links and the counts
+ * are kept in arrays indexed by the network index, shared by all the nodes
+ * and read by TrafficObserver. The entries of a node are only written while
+ * it sends or receives, so the transport runs under ParallelSimulator over
+ * a ParallelTransport, as long as the network does not grow.
+ *
+ */
+public class BandwidthTransport implements Transport, EDProtocol {
+
+	private static final String PAR_TRANSPORT = "transport";
+	private static final String PAR_UPLINK = "uplink";
+	private static final String PAR_DOWNLINK = "downlink";
+	private static final String PAR_HEADER = "header";
+
+	/**
+	 * A message on its way, through the uplink of its sender and then
+	 * through the underlying transport and the downlink of its receiver.
+	 */
+	private static class Packet {
+
+		final Node dest;
+		final Object msg;
+		final int pid;
+		final int bytes;
+
+		// Whether the packet has left the uplink
+		boolean sent;
+
+		Packet(Node dest, Object msg, int pid, int bytes)
+		{
+			this.dest = dest;
+			this.msg = msg;
+			this.pid = pid;
+			this.bytes = bytes;
+		}
+
+	}
+
+	// This protocol, which the packets are addressed to
+	private final int self;
+
+	// The transport giving the latency
+	private final int tid;
+
+	// The bytes per time unit of the links, or 0 when they are unlimited
+	private final double uplink;
+	private final double downlink;
+
+	// The bytes added to every message
+	private final int header;
+
+	// The time every link is free from, by network index
+	private long[] upFree;
+	private long[] downFree;
+
+	// The bytes sent and received by every node since the last reset, and
+	// the messages and bytes sent by every node since the start
+	private long[] sent;
+	private long[] received;
+	private long[] messages;
+	private long[] total;
+
+	public BandwidthTransport(String prefix)
+	{
+		self = Configuration.lookupPid(prefix.substring(prefix.lastIndexOf('.') + 1));
+		tid = Configuration.getPid(prefix + "." + PAR_TRANSPORT);
+		uplink = Configuration.getDouble(prefix + "." + PAR_UPLINK, 0);
+		downlink = Configuration.getDouble(prefix + "." + PAR_DOWNLINK, 0);
+		header = Configuration.getInt(prefix + "." + PAR_HEADER, 28);
+		if(uplink < 0 || downlink < 0){
+			throw new IllegalParameterException(prefix,
+					"The " + PAR_UPLINK + " and " + PAR_DOWNLINK + " must not be negative");
+		}
+		int capacity = Math.max(1, Configuration.getInt("network.size", 1));
+		upFree = new long[capacity];
+		downFree = new long[capacity];
+		sent = new long[capacity];
+		received = new long[capacity];
+		messages = new long[capacity];
+		total = new long[capacity];
+	}
+
+	/**
+	 * Returns this object, the state of all the nodes is kept together.
+	 */
+	public Object clone() {
+		return this;
+	}
+
+	public void send(Node src, Node dest, Object msg, int pid) {
+		int from = src.getIndex();
+		grow(Math.max(from, dest.getIndex()) + 1);
+		Packet packet = new Packet(dest, msg, pid, size(msg));
+		sent[from] += packet.bytes;
+		messages[from]++;
+		total[from] += packet.bytes;
+		if(uplink > 0){
+			long now = time();
+			long start = Math.max(now, upFree[from]);
+			upFree[from] = start + transmission(packet.bytes, uplink);
+			ParallelSimulator.schedule(upFree[from] - now, src, self, packet);
+		}else{
+			depart(src, packet);
+		}
+	}
+
+	/**
+	 * Receives the packets, from the uplink of their sender and from the
+	 * underlying transport.
+	 */
+	public void processEvent(Node node, int pid, Object event) {
+		Packet packet = (Packet) event;
+		if(!packet.sent){
+			depart(node, packet);
+			return;
+		}
+		int to = node.getIndex();
+		received[to] += packet.bytes;
+		if(downlink > 0){
+			long now = time();
+			long start = Math.max(now, downFree[to]);
+			downFree[to] = start + transmission(packet.bytes, downlink);
+			ParallelSimulator.schedule(downFree[to] - now, node, packet.pid, packet.msg);
+		}else{
+			((EDProtocol) node.getProtocol(packet.pid)).processEvent(node, packet.pid, packet.msg);
+		}
+	}
+
+	/**
+	 * Hands a packet that left the uplink of its sender to the underlying
+	 * transport.
+	 */
+	private void depart(Node src, Packet packet) {
+		packet.sent = true;
+		((Transport) src.getProtocol(tid)).send(src, packet.dest, packet, self);
+	}
+
+	public long getLatency(Node src, Node dest) {
+		return ((Transport) src.getProtocol(tid)).getLatency(src, dest);
+	}
+
+	/**
+	 * @return the size of the given message on the wire, in bytes
+	 */
+	public int size(Object msg) {
+		if(msg instanceof GossipMessage){
+			return header + ((GossipMessage) msg).serializedSize();
+		}
+		return header;
+	}
+
+	/**
+	 * @return the bytes sent by every node since the last reset, by network
+	 * index, possibly beyond the size of the network
+	 */
+	public long[] getSent() {
+		return sent;
+	}
+
+	/**
+	 * @return the bytes received by every node since the last reset, by
+	 * network index, possibly beyond the size of the network
+	 */
+	public long[] getReceived() {
+		return received;
+	}
+
+	/**
+	 * @return the number of messages sent since the start
+	 */
+	public long getMessages() {
+		return sum(messages);
+	}
+
+	/**
+	 * @return the bytes sent since the start
+	 */
+	public long getTotal() {
+		return sum(total);
+	}
+
+	/**
+	 * Sets the bytes sent and received by every node back to 0.
+	 */
+	public void reset() {
+		for(int i = 0; i < sent.length; i++){
+			sent[i] = 0;
+			received[i] = 0;
+		}
+	}
+
+	/**
+	 * @return the time units to push the given bytes through a link of the
+	 * given bytes per time unit, at least 1
+	 */
+	private static long transmission(int bytes, double rate) {
+		return Math.max(1, (long) Math.ceil(bytes / rate));
+	}
+
+	private static long sum(long[] counts) {
+		long sum = 0;
+		for(long count : counts){
+			sum += count;
+		}
+		return sum;
+	}
+
+	/**
+	 * @return the time of the event being processed, under either engine
+	 */
+	private static long time() {
+		Partition partition = Partition.current();
+		return partition == null ? CommonState.getTime() : partition.getTime();
+	}
+
+	private void grow(int length) {
+		if(length > sent.length){
+			int capacity = Math.max(length, sent.length + (sent.length >> 1));
+			upFree = Arrays.copyOf(upFree, capacity);
+			downFree = Arrays.copyOf(downFree, capacity);
+			sent = Arrays.copyOf(sent, capacity);
+			received = Arrays.copyOf(received, capacity);
+			messages = Arrays.copyOf(messages, capacity);
+			total = Arrays.copyOf(total, capacity);
+		}
+	}
+
+}
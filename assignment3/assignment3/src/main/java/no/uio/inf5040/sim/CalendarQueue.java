@@ -0,0 +1,280 @@
+package no.uio.inf5040.sim;
+
+import peersim.config.Configuration;
+import peersim.config.IllegalParameterException;
+import peersim.core.Node;
+import peersim.edsim.PriorityQ;
+
+/**
+ * Calendar queue for EDSimulator, to be used in place of its binary heap.
+ *
+ * Time is cut into buckets of a fixed width, and the buckets are laid out
+ * in a circular array, a year, so that an event goes to the bucket of its
+ * time modulo the length of the year. Each bucket is a list sorted by time
+ * and then by insertion order, and removing the first event scans the
+ * buckets from the current one. When the events are spread over a bounded
+ * window, as with the uniform delays of a transport and the step of the
+ * cycle-driven protocols, and the year is at least as long as the window,
+ * both adding and removing an event take constant time: an event is mostly
+ * appended at the end of its bucket, and the head of the current bucket is
+ * the next event.
+ *
+ * Events at the same time and priority come out in the order they were
+ * added, where Heap leaves their order unspecified. In particular, a control
+ * whose step is the step of a cycle-driven protocol then runs after the
+ * nextCycle of all the nodes, and observes the caches of nodes waiting for
+ * their reply.
+ *
+ * Select it in the configuration with
+ *
+ *   simulation.eventqueue no.uio.inf5040.sim.CalendarQueue
+ *   {
+ *   	width 1
+ *   	buckets 2048
+ *   }
+ *
+ * As with Heap, pbits bits of the key, 8 by default, are kept for the
+ * priority of the events, by which EDSimulator orders the controls running
+ * at the same time, and size is the initial number of events the queue can
+ * hold.
+ *
+ */
+public class CalendarQueue implements PriorityQ {
+
+	private static final String PAR_WIDTH = "width";
+	private static final String PAR_BUCKETS = "buckets";
+	private static final String PAR_PBITS = "pbits";
+	private static final String PAR_SIZE = "size";
+
+	private static final int NIL = -1;
+
+	// The width of a bucket, in time units
+	private final long width;
+
+	// The number of buckets minus one, a power of two minus one
+	private final int mask;
+
+	private final int pbits;
+
+	// The first and last events of each bucket
+	private final int[] heads;
+	private final int[] tails;
+
+	// The events, by position. keys holds the time shifted by pbits, or'ed
+	// with the priority; next links the events of a bucket, and the free
+	// positions
+	private long[] keys;
+	private Object[] events;
+	private Node[] nodes;
+	private byte[] pids;
+	private int[] next;
+
+	private int free;
+
+	private int size;
+
+	// The current bucket, and the time where it ends in the current year
+	private int current;
+	private long top;
+
+	// The event returned by removeFirst, reused as Heap does
+	private final Event event = new Event();
+
+	public CalendarQueue()
+	{
+		this("");
+	}
+
+	public CalendarQueue(String prefix)
+	{
+		width = Configuration.getLong(prefix + "." + PAR_WIDTH, 1);
+		int buckets = Configuration.getInt(prefix + "." + PAR_BUCKETS, 2048);
+		pbits = Configuration.getInt(prefix + "." + PAR_PBITS, 8);
+		int capacity = Configuration.getInt(prefix + "." + PAR_SIZE, 65536);
+		if(width < 1){
+			throw new IllegalParameterException(prefix + "." + PAR_WIDTH,
+					"must be at least 1");
+		}
+		if(buckets < 1 || buckets > 1 << 30){
+			throw new IllegalParameterException(prefix + "." + PAR_BUCKETS,
+					"must be between 1 and 2^30");
+		}
+		if(pbits < 0 || pbits > 31){
+			throw new IllegalParameterException(prefix + "." + PAR_PBITS,
+					"must be between 0 and 31");
+		}
+		// Round the number of buckets up to a power of two
+		int n = Integer.highestOneBit(buckets);
+		if(n < buckets){
+			n <<= 1;
+		}
+		mask = n - 1;
+		heads = new int[n];
+		tails = new int[n];
+		for(int i = 0; i < n; i++){
+			heads[i] = NIL;
+			tails[i] = NIL;
+		}
+		allocate(Math.max(capacity, 16));
+		top = width;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void add(long time, Object event, Node node, byte pid) {
+		add(time, event, node, pid, 0);
+	}
+
+	public void add(long time, Object event, Node node, byte pid, long priority) {
+		if(time < 0 || time > maxTime()){
+			throw new IllegalArgumentException("Time overflow: time=" + time);
+		}
+		if(priority < 0 || priority > maxPriority()){
+			throw new IllegalArgumentException("Priority overflow: priority=" + priority);
+		}
+		if(free == NIL){
+			allocate(keys.length * 2);
+		}
+		int i = free;
+		free = next[i];
+
+		long key = (time << pbits) | priority;
+		keys[i] = key;
+		events[i] = event;
+		nodes[i] = node;
+		pids[i] = pid;
+		next[i] = NIL;
+
+		// Move back to the bucket of the event if it is before the current
+		// one, or jump to it if the queue was empty
+		if(size == 0 || time < top - width){
+			moveTo(time);
+		}
+		size++;
+
+		int b = bucket(time);
+		int tail = tails[b];
+		if(tail == NIL){
+			heads[b] = i;
+			tails[b] = i;
+		}
+		else if(keys[tail] <= key){
+			next[tail] = i;
+			tails[b] = i;
+		}
+		else {
+			// Insert after the last event with a key not greater than this one
+			int prev = NIL;
+			int j = heads[b];
+			while(keys[j] <= key){
+				prev = j;
+				j = next[j];
+			}
+			next[i] = j;
+			if(prev == NIL){
+				heads[b] = i;
+			}
+			else {
+				next[prev] = i;
+			}
+		}
+	}
+
+	public Event removeFirst() {
+		if(size == 0){
+			return null;
+		}
+		// Scan a year of buckets for an event of the current year
+		for(int n = 0; n <= mask; n++){
+			int i = heads[current];
+			if(i != NIL && (keys[i] >>> pbits) < top){
+				return remove(i);
+			}
+			current = (current + 1) & mask;
+			top += width;
+		}
+		// The next event is more than a year away: jump to it
+		long min = Long.MAX_VALUE;
+		for(int b = 0; b <= mask; b++){
+			if(heads[b] != NIL && keys[heads[b]] < min){
+				min = keys[heads[b]];
+			}
+		}
+		moveTo(min >>> pbits);
+		return remove(heads[current]);
+	}
+
+	public long maxTime() {
+		return Long.MAX_VALUE >> pbits;
+	}
+
+	public long maxPriority() {
+		return (1L << pbits) - 1;
+	}
+
+	/**
+	 * Removes the event at the given position, which is the head of the
+	 * current bucket.
+	 */
+	private Event remove(int i) {
+		heads[current] = next[i];
+		if(next[i] == NIL){
+			tails[current] = NIL;
+		}
+		event.time = keys[i] >>> pbits;
+		event.event = events[i];
+		event.node = nodes[i];
+		event.pid = pids[i];
+		events[i] = null;
+		nodes[i] = null;
+		next[i] = free;
+		free = i;
+		size--;
+		return event;
+	}
+
+	/**
+	 * Makes the bucket of the given time the current one.
+	 */
+	private void moveTo(long time) {
+		current = bucket(time);
+		top = (time / width + 1) * width;
+	}
+
+	private int bucket(long time) {
+		return (int) (time / width) & mask;
+	}
+
+	/**
+	 * Grows the event arrays to the given capacity, and links the new
+	 * positions into the free list.
+	 */
+	private void allocate(int capacity) {
+		int old = keys == null ? 0 : keys.length;
+		long[] k = new long[capacity];
+		Object[] e = new Object[capacity];
+		Node[] n = new Node[capacity];
+		byte[] p = new byte[capacity];
+		int[] x = new int[capacity];
+		if(old > 0){
+			System.arraycopy(keys, 0, k, 0, old);
+			System.arraycopy(events, 0, e, 0, old);
+			System.arraycopy(nodes, 0, n, 0, old);
+			System.arraycopy(pids, 0, p, 0, old);
+			System.arraycopy(next, 0, x, 0, old);
+		}
+		for(int i = old; i < capacity - 1; i++){
+			x[i] = i + 1;
+		}
+		x[capacity - 1] = NIL;
+		keys = k;
+		events = e;
+		nodes = n;
+		pids = p;
+		next = x;
+		free = old;
+	}
+
+}
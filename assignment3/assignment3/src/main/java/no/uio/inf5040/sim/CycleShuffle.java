@@ -0,0 +1,251 @@
+package no.uio.inf5040.sim;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import no.uio.inf5040.gossip.BasicShuffle;
+import no.uio.inf5040.gossip.CacheStore;
+import no.uio.inf5040.gossip.ShuffleContext;
+import no.uio.inf5040.reports.ObserverOutput;
+import peersim.config.Configuration;
+import peersim.config.IllegalParameterException;
+import peersim.core.CommonState;
+import peersim.core.Control;
+import peersim.core.Network;
+import peersim.core.Node;
+
+/**
+ * Cycle-driven engine running the shuffles of a cycle in parallel.
+ *
+ * Every cycle, on the calling thread, the nodes are visited in a random
+ * order and each one selects the neighbor it shuffles with. The exchanges
+ * are then split into rounds such that a node takes part in at most one
+ * exchange per round: each exchange goes to the first round where neither
+ * of its nodes is paired yet, or is rejected if there is none, which leaves
+ * both caches unchanged as in the event-driven protocol. The rounds run one
+ * after the other, and the disjoint exchanges of a round run concurrently on
+ * a fork-join pool, each completing at once as if the messages had no delay.
+ * A node thus serves at most rounds - 1 requests per cycle.
+ *
+ * The exchanges of a round are split into chunks of a fixed size, and the
+ * random stream of each chunk is seeded from CommonState.r, the round and
+ * the index of the chunk, so a run is reproducible for a given seed whatever
+ * the number of threads.
+ *
+ * The exchanges run and rejected in every cycle are written to the output
+ * of the control, see ObserverOutput. The pool is shut down after the last
+ * cycle of the simulation.
+ *
+ * Use with simulation.nodefaultcycle, in place of CDScheduler, and without
+ * a transport for the protocol.
+ *
+ */
+public class CycleShuffle implements Control {
+
+	private static final String PAR_PROT = "protocol";
+	private static final String PAR_THREADS = "threads";
+	private static final String PAR_CHUNK = "chunk";
+	private static final String PAR_ROUNDS = "rounds";
+
+	private static final String[] NAMES = { "exchanges", "rejected" };
+
+	private final int pid;
+
+	private final int chunk;
+
+	private final int rounds;
+
+	private final ForkJoinPool pool;
+
+	private final ObserverOutput output;
+
+	// The context of each worker, reseeded for every chunk it runs
+	private final ThreadLocal<ShuffleContext> contexts = new ThreadLocal<ShuffleContext>() {
+		@Override
+		protected ShuffleContext initialValue() {
+			return new ShuffleContext(new Random());
+		}
+	};
+
+	// The nodes of the current cycle, in the order they are visited
+	private int[] order = new int[0];
+
+	// The rounds each node is paired in during the current cycle, as a mask
+	private long[] busy = new long[0];
+
+	// The initiator of each exchange, its neighbor and its round
+	private int[] initiators = new int[0];
+	private int[] targets = new int[0];
+	private int[] roundOf = new int[0];
+
+	// The exchanges sorted by round, and where each round starts
+	private int[] sorted = new int[0];
+	private final int[] starts;
+
+	private long exchanges;
+
+	private long rejected;
+
+	// The exchanges rejected in the current cycle
+	private int rejectedInCycle;
+
+	public CycleShuffle(String n)
+	{
+		pid = Configuration.getPid(n + "." + PAR_PROT);
+		chunk = Configuration.getInt(n + "." + PAR_CHUNK, 1024);
+		rounds = Configuration.getInt(n + "." + PAR_ROUNDS, 64);
+		if(rounds < 1 || rounds > 64){
+			throw new IllegalParameterException(n + "." + PAR_ROUNDS,
+					"must be between 1 and 64");
+		}
+		starts = new int[rounds + 1];
+		pool = new ForkJoinPool(Configuration.getInt(n + "." + PAR_THREADS,
+				Runtime.getRuntime().availableProcessors()));
+		output = new ObserverOutput(n);
+	}
+
+	public boolean execute() {
+		int size = Network.size();
+		if(order.length < size){
+			order = new int[size];
+			busy = new long[size];
+			initiators = new int[size];
+			targets = new int[size];
+			roundOf = new int[size];
+			sorted = new int[size];
+		}
+
+		int pairs = match(size);
+		long seed = CommonState.r.nextLong();
+		int done = 0;
+		for(int round = 0; round < rounds && starts[round] < pairs; round++){
+			done += run(starts[round], starts[round + 1], seed + round);
+		}
+
+		rejectedInCycle += pairs - done;
+		exchanges += done;
+		rejected += rejectedInCycle;
+		output.write(CommonState.getTime(), NAMES, new double[] { done, rejectedInCycle });
+		output.endRun();
+		if(CommonState.getTime() >= CommonState.getEndTime() - 1){
+			pool.shutdown();
+		}
+		return false;
+	}
+
+	/**
+	 * Selects the exchanges of the current cycle and sorts them by round.
+	 * @return the number of exchanges
+	 */
+	private int match(int size) {
+		for(int i = 0; i < size; i++){
+			order[i] = i;
+			busy[i] = 0;
+		}
+		long all = rounds == 64 ? -1L : (1L << rounds) - 1;
+		rejectedInCycle = 0;
+		int[] counts = new int[rounds];
+		int pairs = 0;
+		for(int i = 0; i < size; i++){
+			int j = i + CommonState.r.nextInt(size - i);
+			int p = order[j];
+			order[j] = order[i];
+			order[i] = p;
+
+			Node node = Network.get(p);
+			if(!node.isUp()){
+				continue;
+			}
+			BasicShuffle shuffle = (BasicShuffle) node.getProtocol(pid);
+			int pos = shuffle.selectNeighbor();
+			if(pos == CacheStore.NONE){
+				continue;
+			}
+			int q = shuffle.getStore().getNeighbor(shuffle.getSlot(), pos);
+			long free = ~(busy[p] | busy[q]) & all;
+			if(free == 0 || !Network.get(q).isUp()){
+				rejectedInCycle++;
+				continue;
+			}
+			int round = Long.numberOfTrailingZeros(free);
+			busy[p] |= 1L << round;
+			busy[q] |= 1L << round;
+			initiators[pairs] = p;
+			targets[pairs] = q;
+			roundOf[pairs] = round;
+			counts[round]++;
+			pairs++;
+		}
+		starts[0] = 0;
+		for(int round = 0; round < rounds; round++){
+			starts[round + 1] = starts[round] + counts[round];
+			counts[round] = starts[round];
+		}
+		for(int i = 0; i < pairs; i++){
+			sorted[counts[roundOf[i]]++] = i;
+		}
+		return pairs;
+	}
+
+	/**
+	 * Runs the exchanges of a round on the pool. An exchange is dropped when
+	 * the initiator no longer has its neighbor, having replaced it while
+	 * serving a request in an earlier round.
+	 * @return the number of exchanges run
+	 */
+	private int run(int start, int end, final long seed) {
+		List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+		for(int i = start; i < end; i += chunk){
+			final int from = i;
+			final int to = Math.min(end, i + chunk);
+			tasks.add(new Callable<Integer>() {
+				public Integer call() {
+					ShuffleContext context = contexts.get();
+					context.getRandom().setSeed(seed * 0x9E3779B97F4A7C15L + from);
+					ShuffleContext.enter(context);
+					int done = 0;
+					try {
+						for(int i = from; i < to; i++){
+							int k = sorted[i];
+							Node node = Network.get(initiators[k]);
+							BasicShuffle shuffle = (BasicShuffle) node.getProtocol(pid);
+							int pos = shuffle.getStore().indexOf(shuffle.getSlot(), targets[k]);
+							if(pos != CacheStore.NONE){
+								shuffle.exchange(node, pos, pid);
+								done++;
+							}
+						}
+					} finally {
+						ShuffleContext.exit();
+					}
+					return done;
+				}
+			});
+		}
+		int done = 0;
+		try {
+			for(Future<Integer> future : pool.invokeAll(tasks)){
+				done += future.get();
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		return done;
+	}
+
+	public long getExchanges() {
+		return exchanges;
+	}
+
+	public long getRejected() {
+		return rejected;
+	}
+
+}
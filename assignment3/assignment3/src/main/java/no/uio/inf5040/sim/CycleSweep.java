@@ -0,0 +1,59 @@
+package no.uio.inf5040.sim;
+
+import peersim.cdsim.CDProtocol;
+import peersim.config.Configuration;
+import peersim.core.CommonState;
+import peersim.core.Control;
+import peersim.core.Network;
+import peersim.core.Node;
+
+/**
+ * Calls the nextCycle of a cycle-driven protocol on all the nodes, in a
+ * random order drawn from CommonState.r, every time it is run.
+ *
+ * With EDSimulator this replaces CDScheduler, which keeps one nextCycle
+ * event per node in the event queue: run as a control with the step of the
+ * protocol, it leaves only the messages in the queue. The nodes are visited
+ * in a new random permutation every cycle, where the order of the events of
+ * CDScheduler at the same time is left to the event queue.
+ *
+ */
+public class CycleSweep implements Control {
+
+	private static final String PAR_PROT = "protocol";
+
+	private final int pid;
+
+	// The nodes in the order they are visited
+	private int[] order = new int[0];
+
+	public CycleSweep(String n)
+	{
+		pid = Configuration.getPid(n + "." + PAR_PROT);
+	}
+
+	public boolean execute() {
+		int size = Network.size();
+		if(order.length != size){
+			order = new int[size];
+		}
+		for(int i = 0; i < size; i++){
+			order[i] = i;
+		}
+		CommonState.setPid(pid);
+		for(int i = 0; i < size; i++){
+			int j = i + CommonState.r.nextInt(size - i);
+			int index = order[j];
+			order[j] = order[i];
+			order[i] = index;
+
+			Node node = Network.get(index);
+			if(node.isUp()){
+				CommonState.setNode(node);
+				((CDProtocol) node.getProtocol(pid)).nextCycle(node, pid);
+			}
+		}
+		return false;
+	}
+
+}
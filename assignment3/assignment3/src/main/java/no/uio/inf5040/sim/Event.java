@@ -0,0 +1,32 @@
+package no.uio.inf5040.sim;
+
+/**
+ * An event of the parallel engine: an object delivered to a protocol of a
+ * node at a given time. Events of the same time are ordered by the sequence
+ * number given by the queue they are added to.
+ *
+ */
+class Event implements Comparable<Event> {
+
+	final long time;
+	final int node;
+	final int pid;
+	final Object payload;
+	long seq;
+
+	Event(long time, int node, int pid, Object payload)
+	{
+		this.time = time;
+		this.node = node;
+		this.pid = pid;
+		this.payload = payload;
+	}
+
+	public int compareTo(Event other) {
+		if(time != other.time){
+			return time < other.time ? -1 : 1;
+		}
+		return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+	}
+
+}
@@ -0,0 +1,373 @@
+package no.uio.inf5040.sim;
+
+import java.lang.reflect.Method;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+import no.uio.inf5040.gossip.GossipMessage;
+import no.uio.inf5040.gossip.MessageType;
+import no.uio.inf5040.gossip.ShuffleContext;
+import no.uio.inf5040.reports.ObserverOutput;
+import peersim.cdsim.CDProtocol;
+import peersim.config.Configuration;
+import peersim.config.IllegalParameterException;
+import peersim.config.ParsedProperties;
+import peersim.core.CommonState;
+import peersim.core.Control;
+import peersim.core.Network;
+import peersim.core.Node;
+import peersim.edsim.EDProtocol;
+
+/**
+ * Runs every node of a configuration on a thread of its own, in real time,
+ * with the messages delayed in memory, between the simulators and the
+ * UdpRuntime.
+ *
+ * The network and its initializers are set up as by the simulators, and
+ * the protocol given by live.protocol, BasicShuffle, must send through a
+ * LiveTransport. Every node then gets a Mailbox of live.mailbox messages,
+ * 16 by default, and a thread that calls nextCycle every live.period
+ * milliseconds, the first time at a random point of the first period, and
+ * hands the messages of its mailbox to processEvent as they fall due. A
+ * node is only ever run by its thread, so the protocol needs no locking of
+ * its own; the nodes share the global store and the InDegreeTracker, which
+ * are safe to share between threads, and every thread has a ShuffleContext
+ * of its own, seeded from random.seed and the index of its node.
+ *
+ * With live.threads set to virtual, the default, the threads are virtual
+ * threads, so that a hundred thousand nodes fit in one JVM. They are
+ * reached by reflection, for the code to build for older JVMs, and on a JVM
+ * without them the emulation says so and runs on platform threads, as with
+ * live.threads set to platform, which takes an operating system thread per
+ * node and limits the network to a few thousand nodes.
+ *
+ * A message offered to a full mailbox is dropped, so a request without a
+ * reply after live.timeout milliseconds, the period by default, is
+ * answered on behalf of its destination with a rejection, and a reply that
+ * comes afterwards is dropped. Since a node has only one request timed out
+ * at a time, the protocol may have at most one exchange in flight, see the
+ * parameter pipeline of BasicShuffle.
+ *
+ * The emulation is also a benchmark of the protocol under real
+ * concurrency: every live.report milliseconds, 1000 by default, it reports
+ * the exchanges completed, rejected and timed out and the messages dropped
+ * per second, the median and 99th percentile of the time between a request
+ * and its reply, and those of the lag of nextCycle behind its schedule,
+ * which grows with the contention and the scheduling jitter, all in
+ * microseconds, to the output of the prefix live, see ObserverOutput. After
+ * live.duration milliseconds, 10000 by default, the controls of the
+ * configuration run once. Run with
+ *
+ *   java no.uio.inf5040.sim.LiveEmulation LiveExample.txt
+ *
+ */
+public class LiveEmulation {
+
+	private static final String PREFIX = "live";
+	private static final String PAR_PROTOCOL = PREFIX + ".protocol";
+	private static final String PAR_PERIOD = PREFIX + ".period";
+	private static final String PAR_TIMEOUT = PREFIX + ".timeout";
+	private static final String PAR_REPORT = PREFIX + ".report";
+	private static final String PAR_DURATION = PREFIX + ".duration";
+	private static final String PAR_THREADS = PREFIX + ".threads";
+	private static final String PAR_MAILBOX = PREFIX + ".mailbox";
+	private static final String PAR_INIT = "init";
+	private static final String PAR_CONTROL = "control";
+
+	private static final String[] NAMES = { "exchanges", "rejects", "timeouts", "dropped",
+		"p50", "p99", "lag50", "lag99" };
+
+	// The stack of the platform threads, in bytes; the protocol needs little
+	private static final long STACK = 256 * 1024;
+
+	private static LiveEmulation emulation;
+
+	/**
+	 * A node and the thread running it.
+	 */
+	private class Peer implements Runnable {
+
+		private final int index;
+
+		private final Mailbox mailbox;
+
+		// The outstanding request of the node: its destination or -1, its
+		// exchange identifier, and when it was sent and times out
+		private int pending = -1;
+		private int exchange;
+		private long sentAt;
+		private long timeoutAt;
+
+		Peer(int index)
+		{
+			this.index = index;
+			this.mailbox = new Mailbox(capacity);
+		}
+
+		public void run() {
+			ShuffleContext context = new ShuffleContext(new Random(seed + index));
+			ShuffleContext.enter(context);
+			Node node = Network.get(index);
+			try {
+				ready.await();
+				long next = start + (long) (context.getRandom().nextDouble() * period);
+				while(running){
+					long deadline = pending >= 0 && timeoutAt - next < 0 ? timeoutAt : next;
+					GossipMessage message = mailbox.poll(deadline);
+					if(message != null){
+						receive(node, message);
+						continue;
+					}
+					long now = System.nanoTime();
+					if(pending >= 0 && timeoutAt - now <= 0){
+						// The request or its reply was dropped: the destination rejects it
+						GossipMessage reject = context.getPool(length).acquire(
+								MessageType.SHUFFLE_REJECTED, pending);
+						reject.setExchange(exchange);
+						pending = -1;
+						timeouts.increment();
+						((EDProtocol) node.getProtocol(pid)).processEvent(node, pid, reject);
+					}
+					if(next - now <= 0){
+						lags.record(index, (now - next) / 1000);
+						((CDProtocol) node.getProtocol(pid)).nextCycle(node, pid);
+						next += period;
+					}
+				}
+			} catch (InterruptedException e) {
+				// Stopped
+			} finally {
+				ShuffleContext.exit();
+			}
+		}
+
+		private void receive(Node node, GossipMessage message) {
+			if(message.getType() != MessageType.SHUFFLE_REQUEST){
+				// A reply or a rejection must answer the outstanding request:
+				// come from its destination and carry its exchange identifier
+				if(pending != message.getSender() || exchange != message.getExchange()){
+					ShuffleContext.current().getPool(length).release(message);
+					return;
+				}
+				latencies.record(index, (System.nanoTime() - sentAt) / 1000);
+				pending = -1;
+				if(message.getType() == MessageType.SHUFFLE_REPLY){
+					exchanges.increment();
+				}else{
+					rejects.increment();
+				}
+			}
+			((EDProtocol) node.getProtocol(pid)).processEvent(node, pid, message);
+		}
+
+		/**
+		 * Records a request of the node, called by its thread.
+		 */
+		void requested(int dest, int exchange) {
+			pending = dest;
+			this.exchange = exchange;
+			sentAt = System.nanoTime();
+			timeoutAt = sentAt + timeout;
+		}
+
+	}
+
+	private final int pid;
+
+	// The capacity of the messages of the protocol, its shuffleLength
+	private final int length;
+
+	// The period and timeout, in nanoseconds
+	private final long period;
+	private final long timeout;
+
+	private final int capacity;
+
+	private final long seed;
+
+	private final Peer[] peers;
+
+	// Released once all the threads are started, from the time given
+	private final CountDownLatch ready = new CountDownLatch(1);
+	private volatile long start;
+
+	private volatile boolean running = true;
+
+	// Whether the nodes run on virtual threads
+	private boolean virtualThreads;
+
+	// The counts since the last report
+	private final LongAdder exchanges = new LongAdder();
+	private final LongAdder rejects = new LongAdder();
+	private final LongAdder timeouts = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+
+	// The reply times and the lags of nextCycle, in microseconds
+	private final LogHistogram latencies;
+	private final LogHistogram lags;
+
+	private LiveEmulation(int pid, int length, int period, int timeout, int capacity, long seed)
+	{
+		this.pid = pid;
+		this.length = length;
+		this.period = period * 1000000L;
+		this.timeout = timeout * 1000000L;
+		this.capacity = capacity;
+		this.seed = seed;
+		int stripes = 4 * Runtime.getRuntime().availableProcessors();
+		latencies = new LogHistogram(stripes);
+		lags = new LogHistogram(stripes);
+		peers = new Peer[Network.size()];
+		for(int i = 0; i < peers.length; i++){
+			peers[i] = new Peer(i);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.err.println("LiveEmulation: loading configuration");
+		Configuration.setConfig(new ParsedProperties(args));
+		long seed = Configuration.getLong(CommonState.PAR_SEED, System.currentTimeMillis());
+		CommonState.initializeRandom(seed);
+		System.err.println("Random seed: " + seed);
+
+		Network.reset();
+		System.err.println("LiveEmulation: running initializers");
+		for(String name : Configuration.getNames(PAR_INIT)){
+			System.err.println("- Running initializer " + name);
+			((Control) Configuration.getInstance(name)).execute();
+		}
+
+		String protocol = Configuration.getString(PAR_PROTOCOL);
+		int pid = Configuration.lookupPid(protocol);
+		int length = Configuration.getInt("protocol." + protocol + ".shuffleLength");
+		if(Configuration.getInt("protocol." + protocol + ".pipeline", 0) > 1){
+			throw new IllegalParameterException(PAR_PROTOCOL,
+					"Only one exchange in flight per node is timed out, set pipeline to 0 or 1");
+		}
+		int period = Configuration.getInt(PAR_PERIOD, 1000);
+		int timeout = Configuration.getInt(PAR_TIMEOUT, period);
+		int report = Configuration.getInt(PAR_REPORT, 1000);
+		long duration = Configuration.getLong(PAR_DURATION, 10000);
+		int capacity = Configuration.getInt(PAR_MAILBOX, 16);
+		String threads = Configuration.getString(PAR_THREADS, "virtual");
+		if(period < 1 || timeout < 1 || report < 1 || capacity < 1){
+			throw new IllegalParameterException(PREFIX,
+					"The period, timeout, report and mailbox must be at least 1");
+		}
+		if(!threads.equals("virtual") && !threads.equals("platform")){
+			throw new IllegalParameterException(PAR_THREADS,
+					"Unknown threads " + threads + ", use virtual or platform");
+		}
+		ObserverOutput output = new ObserverOutput(PREFIX);
+		emulation = new LiveEmulation(pid, length, period, timeout, capacity, seed);
+		try {
+			emulation.run(threads.equals("virtual"), duration, report, output);
+		} finally {
+			emulation = null;
+			output.close();
+		}
+
+		System.err.println("LiveEmulation: running controls");
+		CommonState.setPhase(CommonState.POST_SIMULATION);
+		for(String name : Configuration.getNames(PAR_CONTROL)){
+			((Control) Configuration.getInstance(name)).execute();
+		}
+	}
+
+	/**
+	 * Puts a message in the mailbox of its destination, due after the given
+	 * latency in nanoseconds, or drops it if the mailbox is full. Called by
+	 * LiveTransport, on the thread of the sender.
+	 */
+	static void send(int src, int dest, GossipMessage message, long latency) {
+		emulation.transmit(src, dest, message, latency);
+	}
+
+	private void transmit(int src, int dest, GossipMessage message, long latency) {
+		if(message.getType() == MessageType.SHUFFLE_REQUEST){
+			peers[src].requested(dest, message.getExchange());
+		}
+		if(!peers[dest].mailbox.offer(message, System.nanoTime() + latency)){
+			dropped.increment();
+			ShuffleContext.current().getPool(length).release(message);
+		}
+	}
+
+	private void run(boolean virtual, long duration, int report, ObserverOutput output)
+			throws InterruptedException {
+		Thread[] threads = createThreads(virtual);
+		long created = System.nanoTime();
+		for(Thread thread : threads){
+			thread.start();
+		}
+		System.err.println("LiveEmulation: " + threads.length + " " + (virtualThreads ? "virtual" : "platform")
+				+ " threads started in " + (System.nanoTime() - created) / 1000000 + " ms, period "
+				+ period / 1000000 + " ms");
+		start = System.nanoTime();
+		ready.countDown();
+
+		try {
+			long elapsed = 0;
+			while(elapsed < duration){
+				long wake = Math.min(elapsed + report, duration);
+				Thread.sleep(Math.max(0, wake - (System.nanoTime() - start) / 1000000));
+				long now = (System.nanoTime() - start) / 1000000;
+				report(output, now, now - elapsed);
+				elapsed = now;
+			}
+		} finally {
+			running = false;
+			for(Thread thread : threads){
+				thread.join();
+			}
+		}
+	}
+
+	/**
+	 * @return a thread for every node, not started, virtual if asked for
+	 * and the JVM has them
+	 */
+	private Thread[] createThreads(boolean virtual) {
+		Method unstarted = null;
+		Object builder = null;
+		if(virtual){
+			try {
+				builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+			} catch (Exception e) {
+				System.err.println("LiveEmulation: no virtual threads in this JVM ("
+						+ e.getClass().getSimpleName() + "), running on platform threads");
+				unstarted = null;
+			}
+		}
+		virtualThreads = unstarted != null;
+		Thread[] threads = new Thread[peers.length];
+		for(int i = 0; i < peers.length; i++){
+			if(unstarted != null){
+				try {
+					threads[i] = (Thread) unstarted.invoke(builder, peers[i]);
+					continue;
+				} catch (Exception e) {
+					throw new IllegalStateException("Cannot create a virtual thread", e);
+				}
+			}
+			threads[i] = new Thread(null, peers[i], "node-" + i, STACK);
+			threads[i].setDaemon(true);
+		}
+		return threads;
+	}
+
+	private void report(ObserverOutput output, long elapsed, long interval) {
+		double seconds = Math.max(interval, 1) / 1000.0;
+		long[] replies = latencies.drain();
+		long[] late = lags.drain();
+		output.write(elapsed, NAMES, new double[] { exchanges.sumThenReset() / seconds,
+				rejects.sumThenReset() / seconds, timeouts.sumThenReset() / seconds,
+				dropped.sumThenReset() / seconds, LogHistogram.quantile(replies, 0.5),
+				LogHistogram.quantile(replies, 0.99), LogHistogram.quantile(late, 0.5),
+				LogHistogram.quantile(late, 0.99) });
+		output.flush();
+	}
+
+}
@@ -0,0 +1,78 @@
+package no.uio.inf5040.sim;
+
+import java.util.Random;
+
+import no.uio.inf5040.gossip.GossipMessage;
+import no.uio.inf5040.gossip.ShuffleContext;
+import peersim.config.Configuration;
+import peersim.config.IllegalParameterException;
+import peersim.core.CommonState;
+import peersim.core.Node;
+import peersim.transport.Transport;
+
+/**
+ * Transport of the LiveEmulation, putting the messages of BasicShuffle in
+ * the mailbox of their destination, due after a latency drawn uniformly
+ * from [mindelay, maxdelay] milliseconds of real time.
+ *
+ * The latency is drawn at nanosecond resolution from the random stream of
+ * the node sending the message, given by its ShuffleContext. The transport
+ * has no state, the mailboxes are those of the emulation, and it only
+ * carries GossipMessage.
+ *
+ */
+public class LiveTransport implements Transport {
+
+	private static final String PAR_MINDELAY = "mindelay";
+	private static final String PAR_MAXDELAY = "maxdelay";
+
+	// The bounds of the latency, in nanoseconds
+	private final long min;
+	private final long max;
+
+	public LiveTransport(String prefix)
+	{
+		double mindelay = Configuration.getDouble(prefix + "." + PAR_MINDELAY, 0);
+		double maxdelay = Configuration.getDouble(prefix + "." + PAR_MAXDELAY, mindelay);
+		if(mindelay < 0){
+			throw new IllegalParameterException(prefix + "." + PAR_MINDELAY, "Must not be negative");
+		}
+		if(maxdelay < mindelay){
+			throw new IllegalParameterException(prefix + "." + PAR_MAXDELAY,
+					"Must not be smaller than " + PAR_MINDELAY);
+		}
+		min = (long) (mindelay * 1000000);
+		max = (long) (maxdelay * 1000000);
+	}
+
+	/**
+	 * Returns this object, the transport has no state.
+	 */
+	public Object clone() {
+		return this;
+	}
+
+	public void send(Node src, Node dest, Object msg, int pid) {
+		LiveEmulation.send(src.getIndex(), dest.getIndex(), (GossipMessage) msg, latency());
+	}
+
+	/**
+	 * Returns a latency in milliseconds, rounded.
+	 */
+	public long getLatency(Node src, Node dest) {
+		return Math.round(latency() / 1000000.0);
+	}
+
+	/**
+	 * @return a latency in nanoseconds
+	 */
+	private long latency() {
+		if(max == min){
+			return min;
+		}
+		ShuffleContext context = ShuffleContext.current();
+		Random r = context == null ? CommonState.r : context.getRandom();
+		return min + (long) (r.nextDouble() * (max - min));
+	}
+
+}
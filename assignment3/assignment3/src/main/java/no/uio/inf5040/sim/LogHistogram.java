@@ -0,0 +1,98 @@
+package no.uio.inf5040.sim;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations recorded by many threads at once, for the
+ * percentiles reported by the LiveEmulation.
+ *
+ * A value falls in one of four buckets for every power of two, so a
+ * percentile is known within a quarter of its value whatever its size, and
+ * the histogram is a few hundred counters. The counters are atomic, and
+ * split into stripes that the threads pick by the node they run, so that
+ * thousands of threads recording at the same time do not all contend on
+ * the same counter.
+ *
+ */
+class LogHistogram {
+
+	// Enough buckets for any non-negative long
+	private static final int BUCKETS = 256;
+
+	private final AtomicLongArray counts;
+
+	private final int mask;
+
+	/**
+	 * @param stripes the number of stripes, rounded up to a power of two
+	 */
+	LogHistogram(int stripes)
+	{
+		int n = Integer.highestOneBit(Math.max(stripes, 1) - 1) << 1;
+		n = Math.max(n, 1);
+		mask = n - 1;
+		counts = new AtomicLongArray(n * BUCKETS);
+	}
+
+	/**
+	 * Records a value, in the stripe given by any number such as the index
+	 * of a node.
+	 */
+	void record(int stripe, long value) {
+		counts.incrementAndGet((stripe & mask) * BUCKETS + bucket(Math.max(value, 0)));
+	}
+
+	/**
+	 * @return the counts of every bucket since the last drain, which are set
+	 * back to 0
+	 */
+	long[] drain() {
+		long[] buckets = new long[BUCKETS];
+		for(int i = 0; i < counts.length(); i++){
+			if(counts.get(i) != 0){
+				buckets[i % BUCKETS] += counts.getAndSet(i, 0);
+			}
+		}
+		return buckets;
+	}
+
+	/**
+	 * @return the smallest value of the bucket holding the given quantile
+	 * of the drained counts, or 0 if there are none
+	 */
+	static long quantile(long[] buckets, double q) {
+		long total = 0;
+		for(long count : buckets){
+			total += count;
+		}
+		if(total == 0){
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(q * total));
+		long seen = 0;
+		for(int b = 0; b < buckets.length; b++){
+			seen += buckets[b];
+			if(seen >= rank){
+				return lowest(b);
+			}
+		}
+		return lowest(buckets.length - 1);
+	}
+
+	private static int bucket(long value) {
+		if(value < 4){
+			return (int) value;
+		}
+		int msb = 63 - Long.numberOfLeadingZeros(value);
+		return (msb - 1) * 4 + (int) ((value >>> (msb - 2)) & 3);
+	}
+
+	private static long lowest(int bucket) {
+		if(bucket < 4){
+			return bucket;
+		}
+		int msb = bucket / 4 + 1;
+		return (long) (4 + bucket % 4) << (msb - 2);
+	}
+
+}
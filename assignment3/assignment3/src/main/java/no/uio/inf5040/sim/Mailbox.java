@@ -0,0 +1,126 @@
+package no.uio.inf5040.sim;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import no.uio.inf5040.gossip.GossipMessage;
+
+/**
+ * Bounded queue of the messages on their way to a node of the
+ * LiveEmulation, in the order of the time they are due.
+ *
+ * The messages wait in a binary heap of their due times, in System.nanoTime
+ * nanoseconds, so a message sent with a shorter latency can overtake one
+ * sent before it. A message offered to a full mailbox is refused rather than
+ * waited for: two nodes sending to each other could otherwise block for
+ * ever. The mailbox is guarded by a ReentrantLock rather than by
+ * synchronized, so a virtual thread waiting on it does not hold on to its
+ * carrier thread.
+ *
+ */
+class Mailbox {
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	// Signalled when a message becomes the first due
+	private final Condition arrived = lock.newCondition();
+
+	// The heap of the messages and of their due times
+	private final GossipMessage[] messages;
+	private final long[] dues;
+	private int count;
+
+	Mailbox(int capacity)
+	{
+		messages = new GossipMessage[capacity];
+		dues = new long[capacity];
+	}
+
+	/**
+	 * Adds a message due at the given time.
+	 * @return false if the mailbox is full, and the message was not added
+	 */
+	boolean offer(GossipMessage message, long due) {
+		lock.lock();
+		try {
+			if(count == messages.length){
+				return false;
+			}
+			int i = count++;
+			while(i > 0){
+				int parent = (i - 1) >>> 1;
+				if(dues[parent] <= due){
+					break;
+				}
+				messages[i] = messages[parent];
+				dues[i] = dues[parent];
+				i = parent;
+			}
+			messages[i] = message;
+			dues[i] = due;
+			if(i == 0){
+				arrived.signal();
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits for the first message to be due, until the given time at most.
+	 * @return the message, or null if none was due by the given time
+	 */
+	GossipMessage poll(long deadline) throws InterruptedException {
+		lock.lock();
+		try {
+			while(true){
+				long now = System.nanoTime();
+				if(count > 0 && dues[0] - now <= 0){
+					return remove();
+				}
+				long wake = count > 0 && dues[0] - deadline < 0 ? dues[0] : deadline;
+				if(wake - now <= 0){
+					return null;
+				}
+				arrived.await(wake - now, TimeUnit.NANOSECONDS);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the first message of the heap, removed from it
+	 */
+	private GossipMessage remove() {
+		GossipMessage first = messages[0];
+		int n = --count;
+		GossipMessage message = messages[n];
+		long due = dues[n];
+		messages[n] = null;
+		int i = 0;
+		while(true){
+			int child = 2 * i + 1;
+			if(child >= n){
+				break;
+			}
+			if(child + 1 < n && dues[child + 1] < dues[child]){
+				child++;
+			}
+			if(due <= dues[child]){
+				break;
+			}
+			messages[i] = messages[child];
+			dues[i] = dues[child];
+			i = child;
+		}
+		if(n > 0){
+			messages[i] = message;
+			dues[i] = due;
+		}
+		return first;
+	}
+
+}
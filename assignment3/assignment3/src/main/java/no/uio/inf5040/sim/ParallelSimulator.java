@@ -0,0 +1,317 @@
+package no.uio.inf5040.sim;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import peersim.config.Configuration;
+import peersim.config.IllegalParameterException;
+import peersim.config.ParsedProperties;
+import peersim.core.CommonState;
+import peersim.core.Control;
+import peersim.core.Network;
+import peersim.core.Node;
+import peersim.core.Scheduler;
+import peersim.edsim.EDSimulator;
+
+/**
+ * Conservative parallel discrete-event engine.
+ * 
+ * The nodes are split into as many contiguous partitions as there are
+ * threads. Every message must travel through a ParallelTransport, whose
+ * minimum delay is the lookahead of the engine: a message sent at time t is
+ * never delivered before t + lookahead, so all the events of a window
+ * [t, t + lookahead) can be processed by the partitions concurrently, and
+ * the messages they send are exchanged at the barrier between windows.
+ * 
+ * Within a partition events are processed in time order, ties broken by the
+ * order they were queued in, and every partition draws from its own random
+ * stream derived from the seed, so a run is reproducible for a given seed
+ * and number of threads.
+ * 
+ * The cycle-driven protocols listed in parallel.protocol get their nextCycle
+ * called every protocol.<name>.step time units, replacing CDScheduler.
+ * Initializers and controls run as with EDSimulator, on the main thread,
+ * between windows. Run with
+ * 
+ *   java no.uio.inf5040.sim.ParallelSimulator config.txt
+ *
+ */
+public class ParallelSimulator {
+
+	private static final String PAR_THREADS = "parallel.threads";
+	private static final String PAR_PROTOCOL = "parallel.protocol";
+	private static final String PAR_RANDSTART = "parallel.randstart";
+	private static final String PAR_ENDTIME = "simulation.endtime";
+	private static final String PAR_STEP = "step";
+	private static final String PAR_INIT = "init";
+	private static final String PAR_CONTROL = "control";
+
+	// Payload of the events calling nextCycle
+	static final Object NEXT_CYCLE = new Object();
+
+	private static ParallelSimulator engine;
+
+	private final long endTime;
+
+	private final long lookahead;
+
+	private final int nodes;
+
+	private final Partition[] partitions;
+
+	// The step of each cycle-driven protocol, by protocol id
+	private final long[] steps;
+
+	private final Control[] controls;
+	private final Scheduler[] schedulers;
+	private final String[] controlNames;
+	private final long[] controlTimes;
+
+	private ParallelSimulator(int threads, long seed)
+	{
+		endTime = Configuration.getLong(PAR_ENDTIME);
+		CommonState.setEndTime(endTime);
+		nodes = Network.size();
+		partitions = new Partition[Math.max(1, Math.min(threads, nodes))];
+		for(int i = 0; i < partitions.length; i++){
+			partitions[i] = new Partition(this, i, partitions.length, seed);
+		}
+
+		lookahead = findLookahead();
+		steps = new long[Network.prototype.protocolSize()];
+		String[] names = Configuration.getString(PAR_PROTOCOL, "").trim().split("\\s+");
+		for(String name : names){
+			if(name.length() > 0){
+				int pid = Configuration.lookupPid(name);
+				steps[pid] = Configuration.getLong("protocol." + name + "." + PAR_STEP);
+			}
+		}
+
+		controlNames = Configuration.getNames(PAR_CONTROL);
+		controls = new Control[controlNames.length];
+		schedulers = new Scheduler[controlNames.length];
+		controlTimes = new long[controlNames.length];
+		for(int i = 0; i < controlNames.length; i++){
+			controls[i] = (Control) Configuration.getInstance(controlNames[i]);
+			schedulers[i] = new Scheduler(controlNames[i]);
+			controlTimes[i] = schedulers[i].from;
+		}
+	}
+
+	/**
+	 * @return the smallest minimum delay of the ParallelTransport protocols
+	 */
+	private static long findLookahead() {
+		long lookahead = Long.MAX_VALUE;
+		Node prototype = Network.get(0);
+		for(int pid = 0; pid < prototype.protocolSize(); pid++){
+			if(prototype.getProtocol(pid) instanceof ParallelTransport){
+				ParallelTransport tr = (ParallelTransport) prototype.getProtocol(pid);
+				lookahead = Math.min(lookahead, tr.getMinDelay());
+			}
+		}
+		if(lookahead == Long.MAX_VALUE){
+			throw new IllegalStateException("The parallel engine needs a ParallelTransport protocol");
+		}
+		return lookahead;
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.err.println("ParallelSimulator: loading configuration");
+		Configuration.setConfig(new ParsedProperties(args));
+		long seed = Configuration.getLong(CommonState.PAR_SEED, System.currentTimeMillis());
+		CommonState.initializeRandom(seed);
+		System.err.println("Random seed: " + seed);
+
+		Network.reset();
+		System.err.println("ParallelSimulator: running initializers");
+		String[] inits = Configuration.getNames(PAR_INIT);
+		for(String name : inits){
+			System.err.println("- Running initializer " + name);
+			((Control) Configuration.getInstance(name)).execute();
+		}
+
+		int threads = Configuration.getInt(PAR_THREADS, Runtime.getRuntime().availableProcessors());
+		if(threads < 1){
+			throw new IllegalParameterException(PAR_THREADS, "Must be at least 1");
+		}
+		engine = new ParallelSimulator(threads, seed);
+		engine.scheduleCycles(Configuration.contains(PAR_RANDSTART));
+		engine.run();
+		engine = null;
+	}
+
+	/**
+	 * Schedules the first nextCycle of every cycle-driven protocol of every
+	 * node, at time 0 or at a random time of the first cycle.
+	 */
+	private void scheduleCycles(boolean randstart) {
+		for(int pid = 0; pid < steps.length; pid++){
+			if(steps[pid] == 0){
+				continue;
+			}
+			for(int i = 0; i < nodes; i++){
+				Partition partition = partitions[partitionOf(i)];
+				long time = randstart ? (long) (partition.getRandom().nextDouble() * steps[pid]) : 0;
+				partition.add(new Event(time, i, pid, NEXT_CYCLE));
+			}
+		}
+	}
+
+	private void run() throws InterruptedException, ExecutionException {
+		System.err.println("ParallelSimulator: " + partitions.length
+				+ " partitions, lookahead " + lookahead);
+		ExecutorService pool = Executors.newFixedThreadPool(partitions.length, new ThreadFactory() {
+			private int count = 0;
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "partition-" + count++);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		long started = System.currentTimeMillis();
+		long windows = 0;
+		long now = 0;
+		// The earliest pending event, or the start when nothing ran yet
+		long next = 0;
+		try {
+			while(true){
+				long control = nextControlTime();
+				// Skip ahead when no event is pending before the next control
+				now = Math.max(now, Math.min(next, control));
+				if(now >= endTime){
+					break;
+				}
+				if(control <= now){
+					if(runControls(control)){
+						break;
+					}
+					continue;
+				}
+				long end = Math.min(Math.min(now + lookahead, control), endTime);
+				List<Future<Long>> results = new ArrayList<Future<Long>>(partitions.length);
+				windows++;
+				for(Partition partition : partitions){
+					partition.startWindow(windows, end);
+					results.add(pool.submit(partition));
+				}
+				next = Long.MAX_VALUE;
+				for(Future<Long> result : results){
+					next = Math.min(next, result.get());
+				}
+				now = end;
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		CommonState.setTime(Math.min(now, endTime));
+		CommonState.setPhase(CommonState.POST_SIMULATION);
+		for(int i = 0; i < controls.length; i++){
+			if(schedulers[i].fin){
+				controls[i].execute();
+			}
+		}
+		long events = 0;
+		for(Partition partition : partitions){
+			events += partition.getEvents();
+		}
+		long elapsed = Math.max(1, System.currentTimeMillis() - started);
+		System.err.println("ParallelSimulator: " + events + " events in " + windows
+				+ " windows, " + elapsed + " ms, " + (events * 1000 / elapsed) + " events/s");
+	}
+
+	/**
+	 * @return the earliest time a control has to run at, Long.MAX_VALUE if
+	 * none will run again before the end
+	 */
+	private long nextControlTime() {
+		long min = Long.MAX_VALUE;
+		for(long time : controlTimes){
+			min = Math.min(min, time);
+		}
+		return min < endTime ? min : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Runs the controls scheduled at the given time, in configuration order.
+	 * @return true if one of them asked to stop the simulation
+	 */
+	private boolean runControls(long time) {
+		CommonState.setTime(time);
+		boolean stop = false;
+		for(int i = 0; i < controls.length; i++){
+			if(controlTimes[i] != time){
+				continue;
+			}
+			Scheduler s = schedulers[i];
+			if(s.active(time)){
+				stop |= controls[i].execute();
+			}
+			long following = time + s.step;
+			controlTimes[i] = following < s.until ? following : Long.MAX_VALUE;
+		}
+		return stop;
+	}
+
+	Partition[] partitions() {
+		return partitions;
+	}
+
+	int partitionOf(int node) {
+		return (int) ((long) node * partitions.length / nodes);
+	}
+
+	long stepOf(int pid) {
+		return steps[pid];
+	}
+
+	long getEndTime() {
+		return endTime;
+	}
+
+	/**
+	 * Sends an event to a protocol of a node after the given delay. From a
+	 * partition thread the delay must be at least the lookahead; from the
+	 * main thread, between windows, any delay is accepted.
+	 */
+	static void send(long delay, Node dest, int pid, Object payload) {
+		Partition partition = Partition.current();
+		if(partition != null){
+			partition.send(new Event(partition.getTime() + delay, dest.getIndex(), pid, payload));
+		}else{
+			long time = CommonState.getTime() + delay;
+			engine.partitions[engine.partitionOf(dest.getIndex())].add(
+					new Event(time, dest.getIndex(), pid, payload));
+		}
+	}
+
+	/**
+	 * Sends an event to a protocol of a node after the given delay, with
+	 * this engine when it runs and with EDSimulator otherwise. Under this
+	 * engine, the delay of an event for a node of another partition must
+	 * be at least the lookahead.
+	 */
+	static void schedule(long delay, Node dest, int pid, Object payload) {
+		if(engine != null){
+			send(delay, dest, pid, payload);
+		}else{
+			EDSimulator.add(delay, payload, dest, pid);
+		}
+	}
+
+	/**
+	 * @return the random stream of the calling partition thread, or
+	 * CommonState.r outside of them
+	 */
+	static Random random() {
+		Partition partition = Partition.current();
+		return partition == null ? CommonState.r : partition.getRandom();
+	}
+
+}
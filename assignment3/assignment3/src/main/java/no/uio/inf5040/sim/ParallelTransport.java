@@ -0,0 +1,67 @@
+package no.uio.inf5040.sim;
+
+import java.util.Random;
+
+import peersim.config.Configuration;
+import peersim.config.IllegalParameterException;
+import peersim.core.Node;
+import peersim.transport.Transport;
+
+/**
+ * Uniform random transport for the ParallelSimulator.
+ * 
+ * Delays are drawn uniformly from [mindelay, maxdelay], like
+ * UniformRandomTransport, but from the random stream of the partition
+ * sending the message. The minimum delay is the lookahead of the engine, so
+ * it must be at least 1, and larger values let more events be processed
+ * between two barriers.
+ *
+ */
+public class ParallelTransport implements Transport {
+
+	private static final String PAR_MINDELAY = "mindelay";
+	private static final String PAR_MAXDELAY = "maxdelay";
+
+	private final long min;
+
+	private final long range;
+
+	public ParallelTransport(String prefix)
+	{
+		min = Configuration.getLong(prefix + "." + PAR_MINDELAY);
+		long max = Configuration.getLong(prefix + "." + PAR_MAXDELAY, min);
+		if(min < 1){
+			throw new IllegalParameterException(prefix + "." + PAR_MINDELAY,
+					"Must be at least 1, it is the lookahead of the parallel engine");
+		}
+		if(max < min){
+			throw new IllegalParameterException(prefix + "." + PAR_MAXDELAY,
+					"Must not be smaller than " + PAR_MINDELAY);
+		}
+		range = max - min + 1;
+	}
+
+	/**
+	 * Returns this object, the transport has no state.
+	 */
+	public Object clone() {
+		return this;
+	}
+
+	public void send(Node src, Node dest, Object msg, int pid) {
+		ParallelSimulator.send(getLatency(src, dest), dest, pid, msg);
+	}
+
+	public long getLatency(Node src, Node dest) {
+		if(range == 1){
+			return min;
+		}
+		Random r = ParallelSimulator.random();
+		return min + (range <= Integer.MAX_VALUE ? r.nextInt((int) range) : (long) (r.nextDouble() * range));
+	}
+
+	public long getMinDelay() {
+		return min;
+	}
+
+}
@@ -0,0 +1,175 @@
+package no.uio.inf5040.sim;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import no.uio.inf5040.gossip.ShuffleContext;
+import peersim.cdsim.CDProtocol;
+import peersim.core.Network;
+import peersim.core.Node;
+import peersim.edsim.EDProtocol;
+
+/**
+ * A range of nodes whose events are processed by one thread at a time.
+ * 
+ * Events for nodes of the partition go straight into its queue. Events for
+ * other partitions are buffered in an outbox per destination, and picked up
+ * by the destination at the start of the next window. Outboxes are double
+ * buffered by window parity, so a partition can fill the outboxes of a
+ * window while the others read those of the previous one.
+ *
+ */
+class Partition implements Callable<Long> {
+
+	private static final ThreadLocal<Partition> current = new ThreadLocal<Partition>();
+
+	private final ParallelSimulator engine;
+
+	final int id;
+
+	private final PriorityQueue<Event> queue;
+
+	private long seq;
+
+	// outbox[parity][destination]
+	private final List<List<List<Event>>> outbox;
+
+	private final Random random;
+
+	private final ShuffleContext context;
+
+	// The window being processed, and where it ends
+	private long window;
+	private long end;
+
+	// The earliest time of the events sent to other partitions in the window
+	private long earliestSent;
+
+	// The time of the event being processed
+	private long now;
+
+	private long events;
+
+	Partition(ParallelSimulator engine, int id, int partitions, long seed)
+	{
+		this.engine = engine;
+		this.id = id;
+		this.queue = new PriorityQueue<Event>();
+		this.outbox = new ArrayList<List<List<Event>>>(2);
+		for(int parity = 0; parity < 2; parity++){
+			List<List<Event>> lists = new ArrayList<List<Event>>(partitions);
+			for(int p = 0; p < partitions; p++){
+				lists.add(new ArrayList<Event>());
+			}
+			outbox.add(lists);
+		}
+		this.random = new Random(seed * 0x9E3779B97F4A7C15L + id);
+		this.context = new ShuffleContext(random);
+	}
+
+	/**
+	 * @return the partition processed by the calling thread, or null
+	 */
+	static Partition current() {
+		return current.get();
+	}
+
+	Random getRandom() {
+		return random;
+	}
+
+	long getTime() {
+		return now;
+	}
+
+	long getEvents() {
+		return events;
+	}
+
+	/**
+	 * Adds an event for a node of this partition.
+	 */
+	void add(Event event) {
+		event.seq = seq++;
+		queue.add(event);
+	}
+
+	/**
+	 * Sends an event from the node being processed. An event for another
+	 * partition must not fall within the current window; one for this
+	 * partition is processed in it when it does.
+	 */
+	void send(Event event) {
+		int destination = engine.partitionOf(event.node);
+		if(destination != id && event.time < end){
+			throw new IllegalStateException("Event at " + event.time
+					+ " is within the lookahead window ending at " + end);
+		}
+		if(destination == id){
+			add(event);
+		}else{
+			outbox.get((int) (window & 1)).get(destination).add(event);
+			earliestSent = Math.min(earliestSent, event.time);
+		}
+	}
+
+	/**
+	 * Prepares the processing of a window.
+	 */
+	void startWindow(long window, long end) {
+		this.window = window;
+		this.end = end;
+	}
+
+	/**
+	 * Processes the events of the window, after receiving those sent by
+	 * the other partitions in the previous one.
+	 * @return the earliest time of a pending event of this partition or of
+	 * an event it sent, Long.MAX_VALUE if there is none
+	 */
+	public Long call() {
+		current.set(this);
+		ShuffleContext.enter(context);
+		try {
+			int previous = (int) ((window - 1) & 1);
+			for(Partition source : engine.partitions()){
+				List<Event> inbox = source.outbox.get(previous).get(id);
+				for(int i = 0; i < inbox.size(); i++){
+					add(inbox.get(i));
+				}
+				inbox.clear();
+			}
+			earliestSent = Long.MAX_VALUE;
+			while(!queue.isEmpty() && queue.peek().time < end){
+				deliver(queue.poll());
+			}
+			long next = queue.isEmpty() ? Long.MAX_VALUE : queue.peek().time;
+			return Math.min(next, earliestSent);
+		} finally {
+			ShuffleContext.exit();
+			current.remove();
+		}
+	}
+
+	private void deliver(Event event) {
+		now = event.time;
+		events++;
+		Node node = Network.get(event.node);
+		if(!node.isUp()){
+			return;
+		}
+		if(event.payload == ParallelSimulator.NEXT_CYCLE){
+			((CDProtocol) node.getProtocol(event.pid)).nextCycle(node, event.pid);
+			long step = engine.stepOf(event.pid);
+			if(now + step < engine.getEndTime()){
+				add(new Event(now + step, event.node, event.pid, event.payload));
+			}
+		}else{
+			((EDProtocol) node.getProtocol(event.pid)).processEvent(node, event.pid, event.payload);
+		}
+	}
+
+}
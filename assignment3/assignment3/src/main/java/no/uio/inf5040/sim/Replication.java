@@ -0,0 +1,183 @@
+package no.uio.inf5040.sim;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The results of the runs of a configuration with several seeds, merged
+ * into their mean and confidence interval as the runs finish.
+ *
+ * The result file of every run is a text series: lines of values separated
+ * by spaces, such as a distribution or a value per cycle. Each value is
+ * merged with the values at the same line and column of the other runs,
+ * with the mean and variance kept by the method of Welford, so a run is
+ * read once and its file deleted as soon as it is merged. A value missing
+ * from a run, past the end of a shorter series, counts as 0, which is what
+ * it means for the buckets of an in-degree distribution. A word that is not
+ * a number, such as the name of an observer, is copied from the first run.
+ *
+ * Once all the runs are merged, the result file gets the mean of every
+ * value followed by the half-width of its 95% confidence interval, from
+ * the Student t distribution, so that gnuplot plots the series with error
+ * bars.
+ *
+ */
+class Replication {
+
+	// The 97.5% quantiles of the Student t distribution, by degrees of
+	// freedom from 1 to 30, beyond which the normal one is close enough
+	private static final double[] STUDENT = { 12.706, 4.303, 3.182, 2.776, 2.571,
+		2.447, 2.365, 2.306, 2.262, 2.228, 2.201, 2.179, 2.160, 2.145, 2.131,
+		2.120, 2.110, 2.101, 2.093, 2.086, 2.080, 2.074, 2.069, 2.064, 2.060,
+		2.056, 2.052, 2.048, 2.045, 2.042 };
+
+	/**
+	 * A line of the series: its words, and the mean and the sum of the
+	 * squared deviations of the numbers among them.
+	 */
+	private static class Line {
+
+		String[] words = new String[0];
+		double[] means = new double[0];
+		double[] squares = new double[0];
+		boolean[] numbers = new boolean[0];
+
+		void grow(int length) {
+			if(length > words.length){
+				words = Arrays.copyOf(words, length);
+				means = Arrays.copyOf(means, length);
+				squares = Arrays.copyOf(squares, length);
+				numbers = Arrays.copyOf(numbers, length);
+			}
+		}
+
+	}
+
+	private final File output;
+
+	private final int runs;
+
+	private final List<Line> lines = new ArrayList<Line>();
+
+	// The number of runs merged, and of those that failed
+	private int merged;
+	private int failed;
+
+	Replication(File output, int runs)
+	{
+		this.output = output;
+		this.runs = runs;
+	}
+
+	/**
+	 * Merges the result file of a run, and deletes it. Writes the result
+	 * file once all the runs are merged.
+	 */
+	synchronized void add(File result) throws IOException {
+		merged++;
+		BufferedReader in = new BufferedReader(new FileReader(result));
+		try {
+			int row = 0;
+			String s;
+			while((s = in.readLine()) != null){
+				if(row == lines.size()){
+					lines.add(new Line());
+				}
+				Line line = lines.get(row++);
+				String[] words = s.trim().length() == 0 ? new String[0] : s.trim().split("\\s+");
+				line.grow(words.length);
+				for(int i = 0; i < words.length; i++){
+					if(line.words[i] == null){
+						line.words[i] = words[i];
+						line.numbers[i] = isNumber(words[i]);
+					}
+					if(line.numbers[i]){
+						update(line, i, isNumber(words[i]) ? Double.parseDouble(words[i]) : 0);
+					}
+				}
+				for(int i = words.length; i < line.words.length; i++){
+					if(line.numbers[i]){
+						update(line, i, 0);
+					}
+				}
+			}
+			for(; row < lines.size(); row++){
+				Line line = lines.get(row);
+				for(int i = 0; i < line.words.length; i++){
+					if(line.numbers[i]){
+						update(line, i, 0);
+					}
+				}
+			}
+		} finally {
+			in.close();
+		}
+		result.delete();
+		if(merged == runs && failed == 0){
+			write();
+			System.err.println("SweepRunner: " + output + " merged from " + runs + " runs");
+		}
+	}
+
+	/**
+	 * Records that a run failed, so that the result file is not written.
+	 */
+	synchronized void fail() {
+		failed++;
+	}
+
+	/**
+	 * Adds a value to the mean and the squared deviations of a column, the
+	 * runs before that did not have it counting as zeros.
+	 */
+	private void update(Line line, int i, double x) {
+		double delta = x - line.means[i];
+		line.means[i] += delta / merged;
+		line.squares[i] += delta * (x - line.means[i]);
+	}
+
+	private void write() throws IOException {
+		double t = runs - 1 <= STUDENT.length ? STUDENT[Math.max(runs - 2, 0)] : 1.96;
+		Writer out = new BufferedWriter(new FileWriter(output));
+		try {
+			out.write("# mean and 95% confidence half-width of " + runs + " runs\n");
+			for(Line line : lines){
+				for(int i = 0; i < line.words.length; i++){
+					if(i > 0){
+						out.write(' ');
+					}
+					if(!line.numbers[i]){
+						out.write(line.words[i]);
+						continue;
+					}
+					double half = runs < 2 ? 0
+							: t * Math.sqrt(line.squares[i] / (runs - 1) / runs);
+					out.write(Double.toString(line.means[i]));
+					out.write(' ');
+					out.write(Double.toString(half));
+				}
+				out.write('\n');
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static boolean isNumber(String word) {
+		try {
+			Double.parseDouble(word);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+}
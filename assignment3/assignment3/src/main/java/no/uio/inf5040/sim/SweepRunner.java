@@ -0,0 +1,314 @@
+package no.uio.inf5040.sim;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import peersim.config.IllegalParameterException;
+import peersim.config.ParsedProperties;
+
+/**
+ * Runs a configuration for every combination of the values of a grid of
+ * parameters, several runs at a time, each in a JVM of its own.
+ *
+ * PeerSim keeps the configuration and the state of a simulation in static
+ * fields, so two runs cannot share a JVM; every run is a child process
+ * running peersim.Simulator on the same class path, with the parameters of
+ * its combination given as key=value overrides. The sweep is described by
+ * a file in the format of the PeerSim configurations:
+ *
+ *   config     the configuration run, which a value may override
+ *   axes       the names of the parameters of the grid
+ *   axis.NAME  the values of the parameter NAME; in its block, the line of
+ *              a value lists the key=value overrides of that value, and the
+ *              line * those of all the values
+ *   output     the result file of a run, which a value may override
+ *   select     a prefix, such as control.graphPL; when set, the lines of
+ *              the standard output of a run that start with it are written
+ *              to the result file, without the prefix. A value may set or
+ *              override it.
+ *   processes  the number of runs at a time, the number of processors by
+ *              default
+ *   jvm        the options of the child JVMs, such as -Xmx2g
+ *   seeds      the number of runs of every combination, 1 by default
+ *   seed       the random.seed of the first of these runs, 1234567890 by
+ *              default, the next ones taking the following seeds
+ *
+ * In the output, in the overrides and in config and select, {NAME} stands
+ * for the value of the parameter NAME, and {output} for the result file,
+ * so that an observer can be told to write its results there, see
+ * no.uio.inf5040.reports.ObserverOutput. The standard error of a run, and
+ * its standard output when nothing is selected from it, go to the result
+ * file followed by .log.
+ *
+ * With more than one seed, the runs of a combination go on at the same
+ * time as those of the others, each writing its own file, and these are
+ * merged into the mean and the confidence interval of every value as the
+ * runs finish, see Replication. Run with
+ *
+ *   java no.uio.inf5040.sim.SweepRunner SweepExample.txt [key=value ...]
+ *
+ */
+public class SweepRunner {
+
+	private static final String PAR_CONFIG = "config";
+	private static final String PAR_AXES = "axes";
+	private static final String PAR_AXIS = "axis";
+	private static final String PAR_OUTPUT = "output";
+	private static final String PAR_SELECT = "select";
+	private static final String PAR_PROCESSES = "processes";
+	private static final String PAR_JVM = "jvm";
+	private static final String PAR_SEEDS = "seeds";
+	private static final String PAR_SEED = "seed";
+
+	// The line of the overrides of all the values of a parameter
+	private static final String ALL = "*";
+
+	/**
+	 * A run of the sweep: the configuration, the overrides and where the
+	 * results go.
+	 */
+	private static class Run implements Callable<Boolean> {
+
+		private final List<String> command;
+		private final File output;
+		private final File log;
+		private final String select;
+
+		// Where the results are merged, or null
+		private final Replication replication;
+
+		Run(List<String> command, File output, String select, Replication replication)
+		{
+			this.command = command;
+			this.output = output;
+			this.log = new File(output.getPath() + ".log");
+			this.select = select;
+			this.replication = replication;
+		}
+
+		public Boolean call() throws IOException, InterruptedException {
+			File parent = output.getAbsoluteFile().getParentFile();
+			if(parent != null){
+				parent.mkdirs();
+			}
+			long started = System.currentTimeMillis();
+			ProcessBuilder builder = new ProcessBuilder(command);
+			if(select == null){
+				builder.redirectErrorStream(true);
+				builder.redirectOutput(log);
+			}else{
+				builder.redirectError(log);
+			}
+			Process process = builder.start();
+			if(select != null){
+				copy(process, select + ":");
+			}
+			int status = process.waitFor();
+			double seconds = (System.currentTimeMillis() - started) / 1000.0;
+			if(status != 0){
+				System.err.println("SweepRunner: " + output + " failed with status "
+						+ status + ", see " + log);
+				if(replication != null){
+					replication.fail();
+				}
+				return false;
+			}
+			System.err.println("SweepRunner: " + output + " done in " + seconds + " s");
+			if(replication != null){
+				replication.add(output);
+			}
+			return true;
+		}
+
+		/**
+		 * Writes the lines of the standard output of the process that start
+		 * with the given prefix to the result file, without the prefix.
+		 */
+		private void copy(Process process, String prefix) throws IOException {
+			BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()));
+			Writer out = new BufferedWriter(new FileWriter(output));
+			try {
+				String line;
+				while((line = in.readLine()) != null){
+					if(line.startsWith(prefix)){
+						out.write(line.substring(prefix.length()).trim());
+						out.write('\n');
+					}
+				}
+			} finally {
+				out.close();
+				in.close();
+			}
+		}
+
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length == 0){
+			System.err.println("Usage: SweepRunner sweep.txt [key=value ...]");
+			System.exit(1);
+		}
+		ParsedProperties sweep = new ParsedProperties(args);
+		List<Run> runs = expand(sweep);
+		int processes = Integer.parseInt(sweep.getProperty(PAR_PROCESSES,
+				Integer.toString(Runtime.getRuntime().availableProcessors())).trim());
+		if(processes < 1){
+			throw new IllegalParameterException(PAR_PROCESSES, "Must be at least 1");
+		}
+		System.err.println("SweepRunner: " + runs.size() + " runs, " + processes + " at a time");
+
+		ExecutorService pool = Executors.newFixedThreadPool(processes);
+		int failed = 0;
+		try {
+			List<Future<Boolean>> results = pool.invokeAll(runs);
+			for(Future<Boolean> result : results){
+				if(!result.get()){
+					failed++;
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+		if(failed > 0){
+			System.err.println("SweepRunner: " + failed + " of " + runs.size() + " runs failed");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * @return a run for every combination of the values of the axes, the
+	 * first axis varying the slowest
+	 */
+	private static List<Run> expand(ParsedProperties sweep) {
+		String[] axes = split(required(sweep, PAR_AXES));
+		String[][] values = new String[axes.length][];
+		for(int i = 0; i < axes.length; i++){
+			values[i] = split(required(sweep, PAR_AXIS + "." + axes[i]));
+			if(values[i].length == 0){
+				throw new IllegalParameterException(PAR_AXIS + "." + axes[i], "No values");
+			}
+		}
+
+		int seeds = Integer.parseInt(sweep.getProperty(PAR_SEEDS, "1").trim());
+		if(seeds < 1){
+			throw new IllegalParameterException(PAR_SEEDS, "Must be at least 1");
+		}
+		long seed = Long.parseLong(sweep.getProperty(PAR_SEED, "1234567890").trim());
+
+		List<String> java = new ArrayList<String>();
+		java.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		for(String option : split(sweep.getProperty(PAR_JVM, ""))){
+			java.add(option);
+		}
+		java.add("-cp");
+		java.add(System.getProperty("java.class.path"));
+		java.add("peersim.Simulator");
+
+		List<Run> runs = new ArrayList<Run>();
+		int[] index = new int[axes.length];
+		while(true){
+			Map<String, String> names = new LinkedHashMap<String, String>();
+			for(int i = 0; i < axes.length; i++){
+				names.put(axes[i], values[i][index[i]]);
+			}
+
+			// The settings of the sweep, then those of the values
+			String config = sweep.getProperty(PAR_CONFIG);
+			String output = sweep.getProperty(PAR_OUTPUT);
+			String select = sweep.getProperty(PAR_SELECT);
+			List<String> overrides = new ArrayList<String>();
+			for(int i = 0; i < axes.length; i++){
+				String prefix = PAR_AXIS + "." + axes[i] + ".";
+				for(String key : new String[] { prefix + ALL, prefix + values[i][index[i]] }){
+					for(String override : split(sweep.getProperty(key, ""))){
+						int eq = override.indexOf('=');
+						if(eq <= 0){
+							throw new IllegalParameterException(key, "Not a key=value override: " + override);
+						}
+						String name = override.substring(0, eq);
+						String value = override.substring(eq + 1);
+						if(name.equals(PAR_CONFIG)){
+							config = value;
+						}else if(name.equals(PAR_OUTPUT)){
+							output = value;
+						}else if(name.equals(PAR_SELECT)){
+							select = value;
+						}else{
+							overrides.add(override);
+						}
+					}
+				}
+			}
+			if(config == null){
+				throw new IllegalParameterException(PAR_CONFIG, "Must be set");
+			}
+			if(output == null){
+				throw new IllegalParameterException(PAR_OUTPUT, "Must be set");
+			}
+
+			output = substitute(output.trim(), names);
+			Replication replication = seeds == 1 ? null : new Replication(new File(output), seeds);
+			for(int i = 0; i < seeds; i++){
+				String result = seeds == 1 ? output : output + ".seed" + i;
+				names.put(PAR_OUTPUT, result);
+				List<String> command = new ArrayList<String>(java);
+				command.add(substitute(config.trim(), names));
+				for(String override : overrides){
+					command.add(substitute(override, names));
+				}
+				if(seeds > 1){
+					command.add("random.seed=" + (seed + i));
+				}
+				runs.add(new Run(command, new File(result),
+						select == null ? null : substitute(select.trim(), names), replication));
+			}
+
+			// The next combination
+			int i = axes.length - 1;
+			while(i >= 0 && ++index[i] == values[i].length){
+				index[i] = 0;
+				i--;
+			}
+			if(i < 0){
+				return runs;
+			}
+		}
+	}
+
+	/**
+	 * @return s with every {NAME} replaced by the value of NAME
+	 */
+	private static String substitute(String s, Map<String, String> names) {
+		for(Map.Entry<String, String> name : names.entrySet()){
+			s = s.replace("{" + name.getKey() + "}", name.getValue());
+		}
+		return s;
+	}
+
+	private static String required(ParsedProperties sweep, String key) {
+		String value = sweep.getProperty(key);
+		if(value == null){
+			throw new IllegalParameterException(key, "Must be set");
+		}
+		return value;
+	}
+
+	private static String[] split(String s) {
+		s = s.trim();
+		return s.length() == 0 ? new String[0] : s.split("\\s+");
+	}
+
+}
@@ -0,0 +1,95 @@
+package no.uio.inf5040.sim;
+
+import java.util.Arrays;
+
+/**
+ * Hashed timer wheel of the UdpRuntime.
+ *
+ * Time goes by ticks, and a timer due at tick t waits in slot t modulo the
+ * number of slots, so scheduling and expiring a timer take constant time
+ * whatever the number of timers. A timer is a key and a sequence number,
+ * both ints, kept in the arrays of its slot, so the wheel allocates nothing
+ * once its slots have grown to the number of timers they hold. Timers can
+ * only be due less than a turn of the wheel ahead.
+ *
+ */
+class TimerWheel {
+
+	/**
+	 * What is done when a timer expires.
+	 */
+	interface Handler {
+
+		void expire(int key, int seq);
+
+	}
+
+	private final int mask;
+
+	// The keys and sequence numbers of the timers of every slot
+	private final int[][] keys;
+	private final int[][] seqs;
+	private final int[] counts;
+
+	// The last tick expired
+	private long now;
+
+	/**
+	 * @param slots the number of slots, more than the longest delay in
+	 * ticks, rounded up to a power of two
+	 */
+	TimerWheel(int slots)
+	{
+		int n = Integer.highestOneBit(Math.max(slots, 2) - 1) << 1;
+		mask = n - 1;
+		keys = new int[n][4];
+		seqs = new int[n][4];
+		counts = new int[n];
+	}
+
+	/**
+	 * @return the last tick expired
+	 */
+	long now() {
+		return now;
+	}
+
+	/**
+	 * Schedules a timer the given number of ticks after the last tick
+	 * expired, at least 1 and less than the number of slots.
+	 */
+	void schedule(long delay, int key, int seq) {
+		if(delay < 1 || delay > mask){
+			throw new IllegalArgumentException("Delay out of the wheel: " + delay);
+		}
+		int slot = (int) ((now + delay) & mask);
+		int count = counts[slot];
+		if(count == keys[slot].length){
+			keys[slot] = Arrays.copyOf(keys[slot], 2 * count);
+			seqs[slot] = Arrays.copyOf(seqs[slot], 2 * count);
+		}
+		keys[slot][count] = key;
+		seqs[slot][count] = seq;
+		counts[slot] = count + 1;
+	}
+
+	/**
+	 * Expires the timers of all the ticks up to the given one, in the order
+	 * of their ticks, and of their scheduling within a tick. The handler may
+	 * schedule new timers.
+	 */
+	void advance(long tick, Handler handler) {
+		while(now < tick){
+			now++;
+			int slot = (int) (now & mask);
+			int count = counts[slot];
+			counts[slot] = 0;
+			int[] k = keys[slot];
+			int[] s = seqs[slot];
+			for(int i = 0; i < count; i++){
+				handler.expire(k[i], s[i]);
+			}
+		}
+	}
+
+}
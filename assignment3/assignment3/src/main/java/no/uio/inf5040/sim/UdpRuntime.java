@@ -0,0 +1,438 @@
+package no.uio.inf5040.sim;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+
+import no.uio.inf5040.gossip.GossipMessage;
+import no.uio.inf5040.gossip.MessagePool;
+import no.uio.inf5040.gossip.MessageType;
+import no.uio.inf5040.gossip.ShuffleContext;
+import no.uio.inf5040.reports.ObserverOutput;
+import peersim.cdsim.CDProtocol;
+import peersim.config.Configuration;
+import peersim.config.IllegalParameterException;
+import peersim.config.ParsedProperties;
+import peersim.core.CommonState;
+import peersim.core.Control;
+import peersim.core.Network;
+import peersim.core.Node;
+import peersim.edsim.EDProtocol;
+
+/**
+ * Runs the nodes of a configuration on real UDP sockets, in real time,
+ * instead of simulating them.
+ *
+ * The network and its initializers are set up as by the simulators, and
+ * the protocol given by udp.protocol, BasicShuffle, must send through a
+ * UdpTransport. Every node then gets a non-blocking DatagramChannel on the
+ * loopback interface, and a single thread runs them all: it waits on a
+ * selector for datagrams, decodes them and hands them to processEvent,
+ * and calls nextCycle on every node every udp.period milliseconds, the
+ * first time at a random point of the first period, from a TimerWheel
+ * with a tick of a millisecond. The protocol runs with a ShuffleContext
+ * of its own, seeded from random.seed.
+ *
+ * A datagram holds a message as GossipMessage models it: a byte for the
+ * type, with its high bit set when an exchange identifier follows, then
+ * the sender, the exchange identifier, the number of entries and the
+ * entries, as variable-length integers. A datagram can be lost, when a
+ * socket buffer is full, so a request without a reply after udp.timeout
+ * milliseconds, the period by default, is answered on behalf of its
+ * destination with a rejection; a reply that comes afterwards is dropped.
+ * Since a node has only one request timed out at a time, the protocol may
+ * have at most one exchange in flight, see the parameter pipeline of
+ * BasicShuffle.
+ *
+ * Every udp.report milliseconds, 1000 by default, the runtime reports the
+ * exchanges completed, rejected and timed out per second, and the
+ * percentiles of the time between a request and its reply, in
+ * microseconds, to the output of the prefix udp, see ObserverOutput. After
+ * udp.duration milliseconds, 10000 by default, the controls of the
+ * configuration run once, so that the observers report on the overlay
+ * built. Run with
+ *
+ *   java no.uio.inf5040.sim.UdpRuntime UdpExample.txt
+ *
+ */
+public class UdpRuntime implements TimerWheel.Handler {
+
+	private static final String PREFIX = "udp";
+	private static final String PAR_PROTOCOL = PREFIX + ".protocol";
+	private static final String PAR_PERIOD = PREFIX + ".period";
+	private static final String PAR_TIMEOUT = PREFIX + ".timeout";
+	private static final String PAR_REPORT = PREFIX + ".report";
+	private static final String PAR_DURATION = PREFIX + ".duration";
+	private static final String PAR_INIT = "init";
+	private static final String PAR_CONTROL = "control";
+
+	private static final String[] NAMES = { "exchanges", "rejects", "timeouts",
+		"p50", "p90", "p99", "max" };
+
+	// The kinds of timers, in the lowest bit of their key
+	private static final int CYCLE = 0;
+	private static final int TIMEOUT = 1;
+
+	private static final MessageType[] TYPES = MessageType.values();
+
+	// The bit of the type byte telling that an exchange identifier follows
+	private static final int TAGGED = 0x80;
+
+	private static UdpRuntime runtime;
+
+	private final int nodes;
+	private final int pid;
+	private final int period;
+	private final int timeout;
+
+	// The capacity of the messages of the protocol, its shuffleLength
+	private final int capacity;
+
+	private final Selector selector;
+	private final DatagramChannel[] channels;
+	private final InetSocketAddress[] addresses;
+
+	private final ByteBuffer in = ByteBuffer.allocateDirect(1 << 16);
+	private final ByteBuffer out = ByteBuffer.allocateDirect(1 << 16);
+
+	private final TimerWheel wheel;
+
+	private final ShuffleContext context;
+
+	// The outstanding request of every node: its destination or -1, its
+	// exchange identifier, the time it was sent, and its number, which
+	// tells its timer apart
+	private final int[] pending;
+	private final int[] tags;
+	private final long[] sentAt;
+	private final int[] requests;
+
+	// The counts since the last report
+	private long exchanges;
+	private long rejects;
+	private long timeouts;
+	private long stale;
+	private long dropped;
+
+	// The reply times since the last report, in microseconds
+	private long[] latencies = new long[1024];
+	private int count;
+
+	private UdpRuntime(int pid, int capacity, int period, int timeout, long seed) throws IOException
+	{
+		this.nodes = Network.size();
+		this.pid = pid;
+		this.capacity = capacity;
+		this.period = period;
+		this.timeout = timeout;
+		this.wheel = new TimerWheel(Math.max(period, timeout) + 1);
+		this.context = new ShuffleContext(new Random(seed));
+		pending = new int[nodes];
+		tags = new int[nodes];
+		sentAt = new long[nodes];
+		requests = new int[nodes];
+		Arrays.fill(pending, -1);
+
+		selector = Selector.open();
+		channels = new DatagramChannel[nodes];
+		addresses = new InetSocketAddress[nodes];
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		for(int i = 0; i < nodes; i++){
+			DatagramChannel channel = DatagramChannel.open();
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, 1 << 16);
+			channel.bind(new InetSocketAddress(loopback, 0));
+			channel.register(selector, SelectionKey.OP_READ, Integer.valueOf(i));
+			channels[i] = channel;
+			addresses[i] = (InetSocketAddress) channel.getLocalAddress();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.err.println("UdpRuntime: loading configuration");
+		Configuration.setConfig(new ParsedProperties(args));
+		long seed = Configuration.getLong(CommonState.PAR_SEED, System.currentTimeMillis());
+		CommonState.initializeRandom(seed);
+		System.err.println("Random seed: " + seed);
+
+		Network.reset();
+		System.err.println("UdpRuntime: running initializers");
+		for(String name : Configuration.getNames(PAR_INIT)){
+			System.err.println("- Running initializer " + name);
+			((Control) Configuration.getInstance(name)).execute();
+		}
+
+		String protocol = Configuration.getString(PAR_PROTOCOL);
+		int pid = Configuration.lookupPid(protocol);
+		int capacity = Configuration.getInt("protocol." + protocol + ".shuffleLength");
+		if(Configuration.getInt("protocol." + protocol + ".pipeline", 0) > 1){
+			throw new IllegalParameterException(PAR_PROTOCOL,
+					"Only one exchange in flight per node is timed out, set pipeline to 0 or 1");
+		}
+		int period = Configuration.getInt(PAR_PERIOD, 1000);
+		int timeout = Configuration.getInt(PAR_TIMEOUT, period);
+		int report = Configuration.getInt(PAR_REPORT, 1000);
+		long duration = Configuration.getLong(PAR_DURATION, 10000);
+		if(period < 1 || timeout < 1 || report < 1){
+			throw new IllegalParameterException(PREFIX,
+					"The period, timeout and report must be at least 1 ms");
+		}
+		ObserverOutput output = new ObserverOutput(PREFIX);
+		runtime = new UdpRuntime(pid, capacity, period, timeout, seed);
+		try {
+			runtime.run(duration, report, output);
+		} finally {
+			runtime.close();
+			runtime = null;
+			output.close();
+		}
+
+		System.err.println("UdpRuntime: running controls");
+		CommonState.setPhase(CommonState.POST_SIMULATION);
+		for(String name : Configuration.getNames(PAR_CONTROL)){
+			((Control) Configuration.getInstance(name)).execute();
+		}
+	}
+
+	/**
+	 * Sends a message from the socket of a node to that of another, as a
+	 * datagram, and gives it back to the pool of the runtime. Called by
+	 * UdpTransport.
+	 */
+	static void send(int src, int dest, GossipMessage message) {
+		runtime.transmit(src, dest, message);
+	}
+
+	private void run(long duration, int report, ObserverOutput output) throws IOException {
+		ShuffleContext.enter(context);
+		try {
+			System.err.println("UdpRuntime: " + nodes + " nodes on " + addresses[0].getAddress()
+					+ ", period " + period + " ms");
+			Random random = context.getRandom();
+			for(int i = 0; i < nodes; i++){
+				wheel.schedule(1 + random.nextInt(period), i << 1 | CYCLE, 0);
+			}
+			long start = System.nanoTime();
+			long nextReport = report;
+			long elapsed = 0;
+			while(elapsed < duration){
+				selector.select(1);
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext()){
+					SelectionKey key = keys.next();
+					keys.remove();
+					receive(((Integer) key.attachment()).intValue());
+				}
+				elapsed = (System.nanoTime() - start) / 1000000;
+				wheel.advance(elapsed, this);
+				if(elapsed >= nextReport){
+					report(output, elapsed, report);
+					nextReport += report;
+				}
+			}
+		} finally {
+			ShuffleContext.exit();
+		}
+		System.err.println("UdpRuntime: " + stale + " late replies dropped, "
+				+ dropped + " datagrams not sent");
+	}
+
+	/**
+	 * Hands all the datagrams waiting on the socket of a node to its
+	 * protocol.
+	 */
+	private void receive(int dest) throws IOException {
+		DatagramChannel channel = channels[dest];
+		MessagePool pool = pool();
+		while(true){
+			in.clear();
+			if(channel.receive(in) == null){
+				return;
+			}
+			in.flip();
+			GossipMessage message = decode(pool);
+			if(message == null){
+				continue;
+			}
+			if(message.getType() != MessageType.SHUFFLE_REQUEST){
+				// A reply or a rejection must answer the outstanding request:
+				// come from its destination and carry its exchange identifier
+				if(pending[dest] != message.getSender() || tags[dest] != message.getExchange()){
+					stale++;
+					pool.release(message);
+					continue;
+				}
+				record(dest);
+				if(message.getType() == MessageType.SHUFFLE_REPLY){
+					exchanges++;
+				}else{
+					rejects++;
+				}
+			}
+			deliver(dest, message);
+		}
+	}
+
+	private void deliver(int dest, GossipMessage message) {
+		Node node = Network.get(dest);
+		CommonState.setNode(node);
+		((EDProtocol) node.getProtocol(pid)).processEvent(node, pid, message);
+	}
+
+	public void expire(int key, int seq) {
+		int index = key >>> 1;
+		if((key & 1) == CYCLE){
+			Node node = Network.get(index);
+			CommonState.setNode(node);
+			((CDProtocol) node.getProtocol(pid)).nextCycle(node, pid);
+			wheel.schedule(period, index << 1 | CYCLE, 0);
+		}else if(pending[index] >= 0 && requests[index] == seq){
+			// The request or its reply was lost: the destination rejects it
+			GossipMessage reject = pool().acquire(MessageType.SHUFFLE_REJECTED, pending[index]);
+			reject.setExchange(tags[index]);
+			pending[index] = -1;
+			timeouts++;
+			deliver(index, reject);
+		}
+	}
+
+	private void transmit(int src, int dest, GossipMessage message) {
+		if(message.getType() == MessageType.SHUFFLE_REQUEST){
+			pending[src] = dest;
+			tags[src] = message.getExchange();
+			sentAt[src] = System.nanoTime();
+			requests[src]++;
+			wheel.schedule(timeout, src << 1 | TIMEOUT, requests[src]);
+		}
+		out.clear();
+		int exchange = message.getExchange();
+		out.put((byte) (message.getType().ordinal() | (exchange != 0 ? TAGGED : 0)));
+		putVarint(message.getSender());
+		if(exchange != 0){
+			putVarint(exchange);
+		}
+		putVarint(message.size());
+		for(int i = 0; i < message.size(); i++){
+			putVarint(message.get(i));
+		}
+		out.flip();
+		try {
+			if(channels[src].send(out, addresses[dest]) == 0){
+				dropped++;
+			}
+		} catch (IOException e) {
+			dropped++;
+		}
+		pool().release(message);
+	}
+
+	/**
+	 * @return the message in the input buffer, or null if it is malformed
+	 */
+	private GossipMessage decode(MessagePool pool) {
+		try {
+			int type = in.get() & 0xFF;
+			boolean tagged = (type & TAGGED) != 0;
+			type &= ~TAGGED;
+			if(type >= TYPES.length){
+				return null;
+			}
+			int sender = getVarint();
+			int exchange = tagged ? getVarint() : 0;
+			int size = getVarint();
+			if(sender < 0 || sender >= nodes || size < 0 || size > pool.getCapacity()){
+				return null;
+			}
+			GossipMessage message = pool.acquire(TYPES[type], sender);
+			message.setExchange(exchange);
+			for(int i = 0; i < size; i++){
+				int index = getVarint();
+				if(index < 0 || index >= nodes){
+					pool.release(message);
+					return null;
+				}
+				message.add(index);
+			}
+			return message;
+		} catch (RuntimeException e) {
+			// A truncated datagram
+			return null;
+		}
+	}
+
+	/**
+	 * Records the time of the reply to the outstanding request of a node.
+	 */
+	private void record(int node) {
+		if(count == latencies.length){
+			latencies = Arrays.copyOf(latencies, 2 * count);
+		}
+		latencies[count++] = (System.nanoTime() - sentAt[node]) / 1000;
+		pending[node] = -1;
+	}
+
+	private void report(ObserverOutput output, long elapsed, int report) {
+		double seconds = report / 1000.0;
+		Arrays.sort(latencies, 0, count);
+		output.write(elapsed, NAMES, new double[] { exchanges / seconds, rejects / seconds,
+				timeouts / seconds, percentile(0.5), percentile(0.9), percentile(0.99),
+				count == 0 ? 0 : latencies[count - 1] });
+		output.flush();
+		exchanges = 0;
+		rejects = 0;
+		timeouts = 0;
+		count = 0;
+	}
+
+	/**
+	 * @return the given percentile of the sorted reply times
+	 */
+	private double percentile(double p) {
+		if(count == 0){
+			return 0;
+		}
+		return latencies[Math.min(count - 1, (int) Math.ceil(p * count) - 1)];
+	}
+
+	private MessagePool pool() {
+		return context.getPool(capacity);
+	}
+
+	private void putVarint(int value) {
+		while((value & ~0x7F) != 0){
+			out.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte) value);
+	}
+
+	private int getVarint() {
+		int value = 0;
+		for(int shift = 0; shift < 35; shift += 7){
+			int b = in.get();
+			value |= (b & 0x7F) << shift;
+			if((b & 0x80) == 0){
+				return value;
+			}
+		}
+		return -1;
+	}
+
+	private void close() throws IOException {
+		for(DatagramChannel channel : channels){
+			if(channel != null){
+				channel.close();
+			}
+		}
+		selector.close();
+	}
+
+}
@@ -0,0 +1,42 @@
+package no.uio.inf5040.sim;
+
+import no.uio.inf5040.gossip.GossipMessage;
+import peersim.core.Node;
+import peersim.transport.Transport;
+
+/**
+ * Transport sending the messages of BasicShuffle as UDP datagrams, for the
+ * UdpRuntime.
+ *
+ * Every node has a socket of its own on the loopback interface, and a
+ * message is encoded and sent from the socket of its sender to that of its
+ * destination as soon as it is handed to the transport. The transport has
+ * no state, the sockets are those of the runtime, and it only carries
+ * GossipMessage.
+ *
+ */
+public class UdpTransport implements Transport {
+
+	public UdpTransport(String prefix)
+	{
+	}
+
+	/**
+	 * Returns this object, the transport has no state.
+	 */
+	public Object clone() {
+		return this;
+	}
+
+	public void send(Node src, Node dest, Object msg, int pid) {
+		UdpRuntime.send(src.getIndex(), dest.getIndex(), (GossipMessage) msg);
+	}
+
+	/**
+	 * Returns 0, the latency is that of the sockets.
+	 */
+	public long getLatency(Node src, Node dest) {
+		return 0;
+	}
+
+}
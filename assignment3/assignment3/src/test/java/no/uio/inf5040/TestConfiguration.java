@@ -0,0 +1,57 @@
+package no.uio.inf5040;
+
+import java.util.Properties;
+
+import peersim.config.Configuration;
+import peersim.core.CommonState;
+
+/**
+ * The PeerSim configuration of the tests.
+ *
+ * PeerSim takes its configuration once per JVM, and reads the properties it
+ * was given as they are when it looks them up, so all the tests share one
+ * set of properties, each setting its own under its own prefix before it
+ * builds the objects that read them.
+ *
+ * PeerSim numbers the protocols when it takes the configuration, so the
+ * protocols of the nodes of the test networks are there from the start: a
+ * plain Linkable, and BasicShuffle over a transport holding the messages
+ * until the test delivers them, with a small cache that the tests may
+ * change before they build their network. The end time of the simulation
+ * can only be set once too, and is END_TIME.
+ */
+public final class TestConfiguration
+{
+	/**
+	 * The names of the protocols of the nodes: an IdleProtocol, a
+	 * BasicShuffle, and a QueueTransport.
+	 */
+	public static final String LINKABLE = "link";
+	public static final String SHUFFLE = "gossip";
+	public static final String TRANSPORT = "queue";
+
+	public static final long END_TIME = 100;
+
+	private static Properties properties;
+
+	private TestConfiguration()
+	{
+	}
+
+	public static synchronized void set(String name, String value)
+	{
+		if (properties == null){
+			properties = new Properties();
+			properties.setProperty("protocol." + LINKABLE, "peersim.core.IdleProtocol");
+			properties.setProperty("protocol." + SHUFFLE, "no.uio.inf5040.gossip.BasicShuffle");
+			properties.setProperty("protocol." + SHUFFLE + ".cacheSize", "8");
+			properties.setProperty("protocol." + SHUFFLE + ".shuffleLength", "3");
+			properties.setProperty("protocol." + SHUFFLE + ".transport", TRANSPORT);
+			properties.setProperty("protocol." + TRANSPORT, "no.uio.inf5040.gossip.QueueTransport");
+			Configuration.setConfig(properties);
+			CommonState.setEndTime(END_TIME);
+		}
+		properties.setProperty(name, value);
+	}
+
+}
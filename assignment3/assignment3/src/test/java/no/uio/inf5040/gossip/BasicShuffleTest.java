@@ -0,0 +1,303 @@
+package no.uio.inf5040.gossip;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import no.uio.inf5040.TestConfiguration;
+import peersim.config.Configuration;
+import peersim.core.CommonState;
+import peersim.core.Network;
+import peersim.core.Node;
+
+/**
+ * Tests of the exchanges of BasicShuffle, played one message at a time
+ * through a QueueTransport: without a pipeline and with one, requests
+ * crossing each other and replies coming in any order.
+ */
+public class BasicShuffleTest extends TestCase
+{
+	private static final int CACHE = 8;
+	private static final int LENGTH = 3;
+
+	private int pid;
+	private QueueTransport transport;
+
+	/**
+	 * Builds a network of the given size, where every node has a full cache
+	 * of random neighbors.
+	 */
+	private void network(int size, int pipeline)
+	{
+		TestConfiguration.set("network.size", Integer.toString(size));
+		TestConfiguration.set("protocol.gossip.cacheSize", Integer.toString(CACHE));
+		TestConfiguration.set("protocol.gossip.shuffleLength", Integer.toString(LENGTH));
+		TestConfiguration.set("protocol.gossip.pipeline", Integer.toString(pipeline));
+		CommonState.initializeRandom(1234567890);
+		CommonState.setTime(0);
+		Network.reset();
+		pid = Configuration.lookupPid(TestConfiguration.SHUFFLE);
+		transport = (QueueTransport) Network.get(0).getProtocol(
+				Configuration.lookupPid(TestConfiguration.TRANSPORT));
+		for (int i = 0; i < size; i++){
+			BasicShuffle shuffle = shuffle(i);
+			while (shuffle.degree() < CACHE){
+				int j = CommonState.r.nextInt(size);
+				if (j != i)
+					shuffle.addNeighbor(Network.get(j));
+			}
+		}
+	}
+
+	private BasicShuffle shuffle(int index)
+	{
+		return (BasicShuffle) Network.get(index).getProtocol(pid);
+	}
+
+	private Set<Integer> cache(int index)
+	{
+		BasicShuffle shuffle = shuffle(index);
+		Set<Integer> cache = new HashSet<Integer>();
+		for (int pos = 0; pos < shuffle.degree(); pos++)
+			cache.add(shuffle.getNeighbor(pos).getIndex());
+		return cache;
+	}
+
+	/**
+	 * Checks that no cache holds its own node or a neighbor twice.
+	 */
+	private void checkCaches()
+	{
+		for (int i = 0; i < Network.size(); i++){
+			BasicShuffle shuffle = shuffle(i);
+			Set<Integer> cache = cache(i);
+			assertTrue(shuffle.degree() <= CACHE);
+			assertEquals("duplicate neighbor", shuffle.degree(), cache.size());
+			assertFalse("own node", cache.contains(i));
+		}
+	}
+
+	/**
+	 * Counts the requests among the messages sent from the given position
+	 * of the queue, by sender.
+	 */
+	private void countRequests(int from, int[] requests)
+	{
+		List<QueueTransport.Sent> queue = transport.getQueue();
+		for (int k = from; k < queue.size(); k++)
+			if (queue.get(k).message.getType() == MessageType.SHUFFLE_REQUEST)
+				requests[queue.get(k).src.getIndex()]++;
+	}
+
+	private void deliverRandom(Random random, int[] requests)
+	{
+		List<QueueTransport.Sent> queue = transport.getQueue();
+		transport.deliver(random.nextInt(queue.size()));
+		countRequests(queue.size(), requests);
+	}
+
+	/**
+	 * Runs the given number of cycles where the nodes start their exchanges
+	 * in a random order while random messages are delivered, so that
+	 * requests reach nodes with exchanges in flight, then delivers all the
+	 * messages left.
+	 * @return the number of requests sent by every node
+	 */
+	private int[] run(int cycles, Random random)
+	{
+		int size = Network.size();
+		int[] requests = new int[size];
+		List<QueueTransport.Sent> queue = transport.getQueue();
+		for (int cycle = 0; cycle < cycles; cycle++){
+			int[] order = new int[size];
+			for (int i = 0; i < size; i++)
+				order[i] = i;
+			for (int i = 0; i < size; i++){
+				int j = i + random.nextInt(size - i);
+				int p = order[j];
+				order[j] = order[i];
+				int from = queue.size();
+				shuffle(p).nextCycle(Network.get(p), pid);
+				countRequests(from, requests);
+				if (random.nextBoolean() && !queue.isEmpty())
+					deliverRandom(random, requests);
+			}
+			for (int n = queue.size() / 2; n > 0; n--)
+				deliverRandom(random, requests);
+			checkCaches();
+		}
+		while (!queue.isEmpty())
+			deliverRandom(random, requests);
+		checkCaches();
+		return requests;
+	}
+
+	/**
+	 * Without a pipeline, a node waiting for its reply rejects the requests
+	 * it receives; with one, it serves them all. Either way every request
+	 * ends in a reply or a rejection, so no exchange is left in flight.
+	 */
+	public void testPipelineServesAllRequests()
+	{
+		for (int pipeline : new int[] { 0, 1, 2, 4 }){
+			network(50, pipeline);
+			int[] requests = run(30, new Random(pipeline));
+			long rejected = 0;
+			long completed = 0;
+			for (int i = 0; i < Network.size(); i++){
+				BasicShuffle shuffle = shuffle(i);
+				assertEquals("requests of " + i, requests[i],
+						shuffle.getCompleted() + shuffle.getRejected());
+				rejected += shuffle.getRejected();
+				completed += shuffle.getCompleted();
+			}
+			if (pipeline == 0)
+				assertTrue("rejections without a pipeline", rejected > 0);
+			else
+				assertEquals("rejections with pipeline " + pipeline, 0, rejected);
+			assertTrue(completed > 0);
+		}
+	}
+
+	/**
+	 * The neighbors a request sent, P excepted.
+	 */
+	private static List<Integer> sent(GossipMessage request)
+	{
+		List<Integer> sent = new ArrayList<Integer>();
+		for (int i = 0; i < request.size() - 1; i++)
+			sent.add(request.get(i));
+		return sent;
+	}
+
+	private static GossipMessage message(MessageType type, int sender, int exchange,
+			List<Integer> entries)
+	{
+		GossipMessage message = new GossipMessage(LENGTH);
+		message.setType(type);
+		message.setSender(sender);
+		message.setExchange(exchange);
+		for (int index : entries)
+			message.add(index);
+		return message;
+	}
+
+	/**
+	 * The cache expected after P gets the reply of an exchange: the new
+	 * entries fill the free room, then replace, in the order they were
+	 * sent, the neighbors sent in that exchange that are still in the cache
+	 * and were not sent again in a later one. Q is then taken back if there
+	 * is room.
+	 */
+	private static Set<Integer> merge(Set<Integer> cache, List<Integer> sent,
+			Map<Integer, Integer> lastSentIn, int e, List<Integer> entries, int q)
+	{
+		Set<Integer> merged = new HashSet<Integer>(cache);
+		List<Integer> candidates = new ArrayList<Integer>();
+		for (int index : sent)
+			if (merged.contains(index) && lastSentIn.get(index) == e)
+				candidates.add(index);
+		for (int index : entries){
+			if (merged.contains(index))
+				continue;
+			if (merged.size() < CACHE)
+				merged.add(index);
+			else if (!candidates.isEmpty()){
+				merged.remove(candidates.remove(0));
+				merged.add(index);
+			}
+		}
+		if (merged.size() < CACHE)
+			merged.add(q);
+		return merged;
+	}
+
+	/**
+	 * With two exchanges in flight, each reply replaces only the neighbors
+	 * sent in its own exchange, whatever the order the replies come in; a
+	 * neighbor sent in both is only replaced by the second one, which the
+	 * first reply must leave alone when it comes first. A reply or a
+	 * rejection that matches no exchange in flight is dropped.
+	 */
+	public void testReplyMergesItsOwnExchange()
+	{
+		int size = 60;
+		network(size, 2);
+		int overlaps = 0;
+		for (int p = 0; p < 20; p++){
+			Node node = Network.get(p);
+			BasicShuffle shuffle = shuffle(p);
+			shuffle.nextCycle(node, pid);
+			shuffle.nextCycle(node, pid);
+			List<QueueTransport.Sent> queue = transport.getQueue();
+			assertEquals(2, queue.size());
+			// A third exchange waits for one of these to end
+			shuffle.nextCycle(node, pid);
+			assertEquals(2, queue.size());
+
+			GossipMessage[] requests = { queue.get(0).message, queue.get(1).message };
+			int[] peers = { queue.get(0).dest.getIndex(), queue.get(1).dest.getIndex() };
+			int[] tags = { requests[0].getExchange(), requests[1].getExchange() };
+			assertTrue(tags[0] != tags[1]);
+			List<List<Integer>> sent = new ArrayList<List<Integer>>();
+			Map<Integer, Integer> lastSentIn = new HashMap<Integer, Integer>();
+			for (int e = 0; e < 2; e++){
+				assertEquals(p, requests[e].get(requests[e].size() - 1));
+				sent.add(sent(requests[e]));
+				for (int index : sent.get(e))
+					lastSentIn.put(index, e);
+			}
+			// The replies in the order of the exchanges for odd nodes, in
+			// the reverse order for even ones
+			int[] order = p % 2 == 1 ? new int[] { 0, 1 } : new int[] { 1, 0 };
+			if (order[0] == 0)
+				for (int index : sent.get(0))
+					if (sent.get(1).contains(index))
+						overlaps++;
+			queue.clear();
+
+			// New neighbors for each reply, from outside the cache
+			Set<Integer> cache = cache(p);
+			List<List<Integer>> entries = new ArrayList<List<Integer>>();
+			entries.add(new ArrayList<Integer>());
+			entries.add(new ArrayList<Integer>());
+			for (int index = 0, e = 0; entries.get(1).size() < LENGTH; index++){
+				if (index == p || cache.contains(index) || index == peers[0] || index == peers[1])
+					continue;
+				entries.get(e).add(index);
+				if (entries.get(e).size() == LENGTH)
+					e++;
+			}
+
+			int completed = shuffle.getCompleted();
+			for (int e : order){
+				Set<Integer> expected = merge(cache, sent.get(e), lastSentIn, e,
+						entries.get(e), peers[e]);
+				shuffle.processEvent(node, pid, message(MessageType.SHUFFLE_REPLY,
+						peers[e], tags[e], entries.get(e)));
+				cache = cache(p);
+				assertEquals("exchange " + e + " of node " + p, expected, cache);
+			}
+			assertEquals(completed + 2, shuffle.getCompleted());
+
+			// Both exchanges are over: their replies and rejections are dropped
+			int rejected = shuffle.getRejected();
+			shuffle.processEvent(node, pid, message(MessageType.SHUFFLE_REPLY,
+					peers[0], tags[0], entries.get(1)));
+			shuffle.processEvent(node, pid, message(MessageType.SHUFFLE_REJECTED,
+					peers[1], tags[1], new ArrayList<Integer>()));
+			assertEquals(cache, cache(p));
+			assertEquals(completed + 2, shuffle.getCompleted());
+			assertEquals(rejected, shuffle.getRejected());
+			assertTrue(transport.getQueue().isEmpty());
+			checkCaches();
+		}
+		assertTrue("no neighbor sent in both exchanges", overlaps > 0);
+	}
+
+}
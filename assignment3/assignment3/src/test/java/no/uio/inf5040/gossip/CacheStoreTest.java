@@ -0,0 +1,239 @@
+package no.uio.inf5040.gossip;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the cache operations of CacheStore, on both stores: the
+ * positions kept by the open-addressing table must always match the cache,
+ * whatever the order of the additions, removals and replacements.
+ */
+public class CacheStoreTest extends TestCase
+{
+	// A cache of 8 neighbors has a table of 16 entries, at most half full
+	private static final int CACHE = 8;
+	private static final int LENGTH = 3;
+
+	private static CacheStore[] stores() throws IOException
+	{
+		return new CacheStore[] { new ArrayCacheStore(CACHE, LENGTH, 2),
+				new DirectCacheStore(CACHE, LENGTH, 2, null) };
+	}
+
+	/**
+	 * @return the home entry of a network index in the table, as the store
+	 * computes it
+	 */
+	private static int home(CacheStore store, int index)
+	{
+		return (index * 0x9E3779B9) >>> (32 - store.bits);
+	}
+
+	/**
+	 * @return the first network indices from the given one with the given
+	 * home entry
+	 */
+	private static int[] homedAt(CacheStore store, int home, int count, int from)
+	{
+		int[] indices = new int[count];
+		for (int index = from, n = 0; n < count; index++)
+			if (home(store, index) == home)
+				indices[n++] = index;
+		return indices;
+	}
+
+	/**
+	 * Checks that the cache of the slot holds the model, in its order, and
+	 * that the table maps every neighbor to its position and nothing else.
+	 */
+	private static void check(CacheStore store, int slot, List<Integer> model)
+	{
+		assertEquals(model.size(), store.degree(slot));
+		for (int pos = 0; pos < model.size(); pos++){
+			assertEquals(model.get(pos).intValue(), store.getNeighbor(slot, pos));
+			assertEquals(pos, store.indexOf(slot, model.get(pos)));
+		}
+		int entries = 0;
+		for (int i = 0; i < store.tableSize; i++)
+			if (store.getTable(slot, i) != 0)
+				entries++;
+		assertEquals("table entries", model.size(), entries);
+		for (int index = 0; index < 200; index++)
+			if (!model.contains(index))
+				assertEquals(CacheStore.NONE, store.indexOf(slot, index));
+	}
+
+	public void testAddAndIndexOf() throws IOException
+	{
+		for (CacheStore store : stores()){
+			int slot = store.allocate();
+			List<Integer> model = new ArrayList<Integer>();
+			check(store, slot, model);
+			for (int index : new int[] { 7, 0, 42, 199 }){
+				store.add(slot, index);
+				model.add(index);
+				check(store, slot, model);
+			}
+		}
+	}
+
+	public void testSlotsAreIndependent() throws IOException
+	{
+		for (CacheStore store : stores()){
+			int a = store.allocate();
+			int b = store.allocate();
+			store.add(a, 5);
+			store.add(b, 6);
+			assertEquals(0, store.indexOf(a, 5));
+			assertEquals(CacheStore.NONE, store.indexOf(a, 6));
+			assertEquals(0, store.indexOf(b, 6));
+			assertEquals(CacheStore.NONE, store.indexOf(b, 5));
+		}
+	}
+
+	/**
+	 * Neighbors homed at the last entry of the table probe around to the
+	 * first ones, so removing the first of them shifts the others back
+	 * across the end of the table, where the hole is past the entry looked
+	 * at.
+	 */
+	public void testUnlinkWrapsAround() throws IOException
+	{
+		for (CacheStore store : stores()){
+			int slot = store.allocate();
+			int last = store.tableSize - 1;
+			int[] wrapped = homedAt(store, last, 3, 0);
+			int first = homedAt(store, 0, 1, 0)[0];
+			List<Integer> model = new ArrayList<Integer>();
+			for (int index : wrapped){
+				store.add(slot, index);
+				model.add(index);
+			}
+			// Homed at entry 0, but pushed to entry 2 by the wrapped ones
+			store.add(slot, first);
+			model.add(first);
+			check(store, slot, model);
+			assertEquals(1, store.getTable(slot, last));
+			assertEquals(2, store.getTable(slot, 0));
+			assertEquals(3, store.getTable(slot, 1));
+			assertEquals(4, store.getTable(slot, 2));
+
+			// The hole at the last entry is filled across the end of the table
+			store.removeAt(slot, 0);
+			model.set(0, model.remove(model.size() - 1));
+			check(store, slot, model);
+			assertEquals(CacheStore.NONE, store.indexOf(slot, wrapped[0]));
+			assertTrue(store.getTable(slot, last) != 0);
+			assertEquals(0, store.getTable(slot, 2));
+		}
+	}
+
+	/**
+	 * The entries after the hole move back into it when their home is not
+	 * between the hole and their entry, and stay put when it is.
+	 */
+	public void testUnlinkKeepsEntriesAtHome() throws IOException
+	{
+		for (CacheStore store : stores()){
+			int slot = store.allocate();
+			int[] colliding = homedAt(store, 3, 2, 0);
+			int next = homedAt(store, 4, 1, 0)[0];
+			store.add(slot, colliding[0]);
+			store.add(slot, colliding[1]);
+			// Homed at entry 4, which colliding[1] took, so it goes to 5
+			store.add(slot, next);
+			// Homed at entry 6, right after them
+			int home = homedAt(store, 6, 1, 0)[0];
+			store.add(slot, home);
+			List<Integer> model = new ArrayList<Integer>();
+			model.add(colliding[0]);
+			model.add(colliding[1]);
+			model.add(next);
+			model.add(home);
+			check(store, slot, model);
+
+			store.replaceAt(slot, 0, 1000);
+			model.set(0, 1000);
+			check(store, slot, model);
+			// colliding[1] moved back home, next followed it into entry 4
+			assertEquals(2, store.getTable(slot, 3));
+			assertEquals(3, store.getTable(slot, 4));
+			assertEquals(4, store.getTable(slot, 6));
+		}
+	}
+
+	public void testRemoveLastAndOnly() throws IOException
+	{
+		for (CacheStore store : stores()){
+			int slot = store.allocate();
+			List<Integer> model = new ArrayList<Integer>();
+			store.add(slot, 11);
+			store.add(slot, 12);
+			model.add(11);
+			model.add(12);
+			store.removeAt(slot, 1);
+			model.remove(1);
+			check(store, slot, model);
+			store.removeAt(slot, 0);
+			model.remove(0);
+			check(store, slot, model);
+		}
+	}
+
+	public void testSentInFollowsTheEntry() throws IOException
+	{
+		for (CacheStore store : stores()){
+			int slot = store.allocate();
+			store.add(slot, 1);
+			store.add(slot, 2);
+			store.add(slot, 3);
+			store.setSentIn(slot, 2, 9);
+			store.removeAt(slot, 0);
+			// The last entry moved into the hole with its tag
+			assertEquals(3, store.getNeighbor(slot, 0));
+			assertEquals(9, store.getSentIn(slot, 0));
+			store.replaceAt(slot, 0, 4);
+			assertEquals(0, store.getSentIn(slot, 0));
+		}
+	}
+
+	/**
+	 * Random additions, removals and replacements on a cache kept close to
+	 * full, so that the table is as loaded as it gets and long probe
+	 * sequences, often wrapping around, are common.
+	 */
+	public void testAlmostFullTable() throws IOException
+	{
+		Random random = new Random(1234567890);
+		for (CacheStore store : stores()){
+			int slot = store.allocate();
+			List<Integer> model = new ArrayList<Integer>();
+			for (int step = 0; step < 20000; step++){
+				int index = random.nextInt(200);
+				int op = random.nextInt(4);
+				if (model.size() < CACHE - 1 || op == 0 && model.size() < CACHE){
+					if (!model.contains(index)){
+						store.add(slot, index);
+						model.add(index);
+					}
+				}else if (op == 1){
+					int pos = random.nextInt(model.size());
+					store.removeAt(slot, pos);
+					int last = model.remove(model.size() - 1);
+					if (pos < model.size())
+						model.set(pos, last);
+				}else if (!model.contains(index)){
+					int pos = random.nextInt(model.size());
+					store.replaceAt(slot, pos, index);
+					model.set(pos, index);
+				}
+				check(store, slot, model);
+			}
+		}
+	}
+
+}
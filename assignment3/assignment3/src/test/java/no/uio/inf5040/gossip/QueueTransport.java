@@ -0,0 +1,82 @@
+package no.uio.inf5040.gossip;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import peersim.core.Node;
+import peersim.edsim.EDProtocol;
+import peersim.transport.Transport;
+
+/**
+ * Transport holding the messages sent until the test delivers them, in
+ * whatever order it chooses, so that it can play the interleavings of an
+ * event-driven run one message at a time.
+ */
+public class QueueTransport implements Transport
+{
+	/**
+	 * A message sent and not delivered yet.
+	 */
+	public static class Sent
+	{
+		public final Node src;
+		public final Node dest;
+		public final GossipMessage message;
+		public final int pid;
+
+		Sent(Node src, Node dest, GossipMessage message, int pid)
+		{
+			this.src = src;
+			this.dest = dest;
+			this.message = message;
+			this.pid = pid;
+		}
+	}
+
+	private final List<Sent> queue = new ArrayList<Sent>();
+
+	public QueueTransport(String prefix)
+	{
+	}
+
+	/**
+	 * Returns this object, all the nodes send into the same queue.
+	 */
+	public Object clone()
+	{
+		return this;
+	}
+
+	public void send(Node src, Node dest, Object msg, int pid)
+	{
+		queue.add(new Sent(src, dest, (GossipMessage) msg, pid));
+	}
+
+	public long getLatency(Node src, Node dest)
+	{
+		return 0;
+	}
+
+	/**
+	 * @return the messages sent and not delivered yet, in the order they
+	 * were sent
+	 */
+	public List<Sent> getQueue()
+	{
+		return queue;
+	}
+
+	/**
+	 * Takes the message at the given position out of the queue and delivers
+	 * it to its destination, which may send more.
+	 * @return the message, which the protocol may since have reused
+	 */
+	public Sent deliver(int i)
+	{
+		Sent sent = queue.remove(i);
+		((EDProtocol) sent.dest.getProtocol(sent.pid)).processEvent(sent.dest, sent.pid,
+				sent.message);
+		return sent;
+	}
+
+}
@@ -0,0 +1,114 @@
+package no.uio.inf5040.reports;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import no.uio.inf5040.TestConfiguration;
+import peersim.config.Configuration;
+import peersim.core.CommonState;
+import peersim.core.IdleProtocol;
+import peersim.core.Network;
+
+/**
+ * Tests that HyperAnfObserver draws its hashes from its own stream: the
+ * stream of the simulation is the same with the observer as without it,
+ * and the values depend on the seed of the observer only.
+ */
+public class HyperAnfObserverTest extends TestCase
+{
+	private static final int SIZE = 200;
+
+	private File file;
+
+	protected void setUp() throws IOException
+	{
+		file = File.createTempFile("hyperanf", ".csv");
+		TestConfiguration.set("network.size", Integer.toString(SIZE));
+		TestConfiguration.set("hyper.protocol", TestConfiguration.LINKABLE);
+		TestConfiguration.set("hyper.threads", "1");
+		TestConfiguration.set("hyper.format", "csv");
+		TestConfiguration.set("hyper.file", file.getPath());
+		int pid = Configuration.lookupPid(TestConfiguration.LINKABLE);
+		CommonState.setTime(0);
+		Network.reset();
+
+		// A ring, and random edges
+		Random random = new Random(1234567890);
+		for (int u = 0; u < SIZE; u++){
+			IdleProtocol link = (IdleProtocol) Network.get(u).getProtocol(pid);
+			link.addNeighbor(Network.get((u + 1) % SIZE));
+			for (int i = 0; i < 3; i++)
+				link.addNeighbor(Network.get(random.nextInt(SIZE)));
+		}
+	}
+
+	protected void tearDown()
+	{
+		file.delete();
+	}
+
+	private static long[] draw()
+	{
+		long[] values = new long[8];
+		for (int i = 0; i < values.length; i++)
+			values[i] = CommonState.r.nextLong();
+		return values;
+	}
+
+	/**
+	 * Runs an observer with the given seed for a few cycles.
+	 * @return the lines it wrote, its header excepted
+	 */
+	private List<String> run(long seed) throws IOException
+	{
+		TestConfiguration.set("hyper.seed", Long.toString(seed));
+		HyperAnfObserver observer = new HyperAnfObserver("hyper");
+		for (int t = 0; t < 3; t++){
+			CommonState.setTime(t);
+			assertFalse(observer.execute());
+		}
+		List<String> lines = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			assertEquals("time,avgpath,effdiameter,pairs", in.readLine());
+			String s;
+			while ((s = in.readLine()) != null)
+				lines.add(s);
+		} finally {
+			in.close();
+		}
+		assertEquals(3, lines.size());
+		return lines;
+	}
+
+	public void testRandomStreamUnchanged() throws IOException
+	{
+		CommonState.initializeRandom(987654321);
+		long[] without = draw();
+		CommonState.initializeRandom(987654321);
+		run(42);
+		long[] with = draw();
+		for (int i = 0; i < without.length; i++)
+			assertEquals("draw " + i, without[i], with[i]);
+	}
+
+	/**
+	 * The same seed gives the same values, whatever the state of the stream
+	 * of the simulation, and another seed other hashes.
+	 */
+	public void testValuesFollowSeed() throws IOException
+	{
+		CommonState.initializeRandom(1);
+		List<String> first = run(42);
+		CommonState.initializeRandom(2);
+		assertEquals(first, run(42));
+		assertFalse(first.equals(run(43)));
+	}
+
+}
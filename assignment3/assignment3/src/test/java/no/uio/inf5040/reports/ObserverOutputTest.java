@@ -0,0 +1,150 @@
+package no.uio.inf5040.reports;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import no.uio.inf5040.TestConfiguration;
+import peersim.core.CommonState;
+
+/**
+ * Tests that an ObserverOutput writing to a file has written all its
+ * results and closed the file after the last run of its observer, and not
+ * before, and that it leaves the standard output open.
+ */
+public class ObserverOutputTest extends TestCase
+{
+	private static final long END = TestConfiguration.END_TIME;
+
+	private static final String[] NAMES = { "a", "b" };
+
+	private File file;
+
+	protected void setUp() throws IOException
+	{
+		file = File.createTempFile("output", ".txt");
+	}
+
+	protected void tearDown()
+	{
+		CommonState.setPhase(CommonState.PHASE_UNKNOWN);
+		file.delete();
+	}
+
+	private ObserverOutput output(String prefix, String format)
+	{
+		TestConfiguration.set(prefix + ".file", file.getPath());
+		TestConfiguration.set(prefix + ".format", format);
+		return new ObserverOutput(prefix);
+	}
+
+	private void run(ObserverOutput output, long time)
+	{
+		CommonState.setTime(time);
+		output.write(time, NAMES, new double[] { time, time / 2.0 });
+		output.endRun();
+	}
+
+	private List<String> lines() throws IOException
+	{
+		List<String> lines = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String s;
+			while ((s = in.readLine()) != null)
+				lines.add(s);
+		} finally {
+			in.close();
+		}
+		return lines;
+	}
+
+	/**
+	 * Runs every step time units up to the end: every run is in the file
+	 * once it is over, and the file is closed after the last one.
+	 */
+	public void testClosedAfterLastRun() throws IOException
+	{
+		TestConfiguration.set("stepped.step", "3");
+		ObserverOutput output = output("stepped", "csv");
+		int runs = 0;
+		for (long time = 0; time < END; time += 3){
+			assertTrue("open at " + time, output.isOpen());
+			run(output, time);
+			runs++;
+			assertEquals(runs + 1, lines().size());
+		}
+		assertFalse(output.isOpen());
+		List<String> lines = lines();
+		assertEquals("time,a,b", lines.get(0));
+		assertEquals("99,99.0,49.5", lines.get(runs));
+
+		// Nothing can be written after
+		output.write(END, NAMES, new double[] { 0, 0 });
+		try {
+			output.flush();
+			fail("written after the last run");
+		} catch (RuntimeException e) {
+		}
+		assertEquals(runs + 1, lines().size());
+	}
+
+	/**
+	 * With until, the last run is the last one before until.
+	 */
+	public void testClosedAfterUntil() throws IOException
+	{
+		TestConfiguration.set("until.until", "10");
+		ObserverOutput output = output("until", "text");
+		for (long time = 0; time < 9; time++)
+			run(output, time);
+		assertTrue(output.isOpen());
+		run(output, 9);
+		assertFalse(output.isOpen());
+		assertEquals(10, lines().size());
+		assertEquals("until: 9.0 4.5", lines().get(9));
+	}
+
+	/**
+	 * With FINAL, the file stays open until the run after the end.
+	 */
+	public void testClosedAfterFinalRun() throws IOException
+	{
+		TestConfiguration.set("final.FINAL", "");
+		ObserverOutput output = output("final", "binary");
+		for (long time = 0; time < END; time++)
+			run(output, time);
+		assertTrue(output.isOpen());
+		CommonState.setPhase(CommonState.POST_SIMULATION);
+		run(output, END);
+		assertFalse(output.isOpen());
+
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			for (long time = 0; time <= END; time++){
+				assertEquals(time, in.readLong());
+				assertEquals(2, in.readInt());
+				assertEquals((double) time, in.readDouble());
+				assertEquals(time / 2.0, in.readDouble());
+			}
+			assertEquals(-1, in.read());
+		} finally {
+			in.close();
+		}
+	}
+
+	public void testStandardOutputLeftOpen()
+	{
+		TestConfiguration.set("stdout.format", "csv");
+		ObserverOutput output = new ObserverOutput("stdout");
+		output.close();
+		assertTrue(output.isOpen());
+	}
+
+}
@@ -0,0 +1,160 @@
+package no.uio.inf5040.reports;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+import no.uio.inf5040.TestConfiguration;
+import peersim.config.Configuration;
+import peersim.core.CommonState;
+import peersim.core.Fallible;
+import peersim.core.IdleProtocol;
+import peersim.core.Network;
+
+/**
+ * Tests of the rows OverlaySnapshot derives from the out-neighbors, against
+ * rows built one edge at a time: the in-neighbors sorted by source, the
+ * out-neighbors followed by the in-neighbors, and their sorted union.
+ */
+public class OverlaySnapshotTest extends TestCase
+{
+	private static final int SIZE = 300;
+
+	private int pid;
+
+	// The out-neighbors of every node, as added
+	private List<List<Integer>> out;
+
+	protected void setUp()
+	{
+		TestConfiguration.set("network.size", Integer.toString(SIZE));
+		TestConfiguration.set("snapshot.protocol", TestConfiguration.LINKABLE);
+		TestConfiguration.set("snapshot.threads", "1");
+		TestConfiguration.set("parallel.protocol", TestConfiguration.LINKABLE);
+		TestConfiguration.set("parallel.threads", "3");
+		pid = Configuration.lookupPid(TestConfiguration.LINKABLE);
+		CommonState.setTime(0);
+		Network.reset();
+
+		// Random edges, mutual ones among them, and a node of degree 0
+		Random random = new Random(1234567890);
+		out = new ArrayList<List<Integer>>();
+		for (int u = 0; u < SIZE; u++){
+			out.add(new ArrayList<Integer>());
+			int degree = u == 7 ? 0 : random.nextInt(12);
+			for (int i = 0; i < degree; i++)
+				link(u, random.nextInt(SIZE));
+			if (u % 10 == 0 && u > 0)
+				link(u, u - 1);
+			if (u % 10 == 9)
+				link(u, u - 8);
+		}
+		for (int u = 0; u < SIZE; u++)
+			if (u % 10 == 1 && !out.get(u).contains(u + 1))
+				link(u, u + 1);
+	}
+
+	private void link(int u, int v)
+	{
+		if (u != v && ((IdleProtocol) Network.get(u).getProtocol(pid)).addNeighbor(Network.get(v)))
+			out.get(u).add(v);
+	}
+
+	private static List<Integer> row(OverlaySnapshot.Rows rows, int u)
+	{
+		List<Integer> row = new ArrayList<Integer>();
+		for (int k = rows.offsets[u]; k < rows.offsets[u + 1]; k++)
+			row.add(rows.targets[k]);
+		return row;
+	}
+
+	private List<List<Integer>> in()
+	{
+		List<List<Integer>> in = new ArrayList<List<Integer>>();
+		for (int u = 0; u < SIZE; u++)
+			in.add(new ArrayList<Integer>());
+		for (int v = 0; v < SIZE; v++)
+			if (Network.get(v).isUp())
+				for (int u : out.get(v))
+					in.get(u).add(v);
+		return in;
+	}
+
+	private void check(OverlaySnapshot snapshot)
+	{
+		List<List<Integer>> in = in();
+		OverlaySnapshot.Rows outRows = snapshot.getOut();
+		OverlaySnapshot.Rows inRows = snapshot.getIn();
+		OverlaySnapshot.Rows undirected = snapshot.getUndirected();
+		OverlaySnapshot.Rows simple = snapshot.getSimple();
+		int[] degrees = snapshot.getInDegrees();
+		assertEquals(SIZE, outRows.size);
+		assertEquals(SIZE, inRows.size);
+		for (int u = 0; u < SIZE; u++){
+			List<Integer> o = Network.get(u).isUp() ? out.get(u) : new ArrayList<Integer>();
+			assertEquals(o, row(outRows, u));
+			assertEquals("in " + u, in.get(u), row(inRows, u));
+			assertEquals(in.get(u).size(), degrees[u]);
+
+			List<Integer> both = new ArrayList<Integer>(o);
+			both.addAll(in.get(u));
+			assertEquals("undirected " + u, both, row(undirected, u));
+			assertEquals("simple " + u, new ArrayList<Integer>(new TreeSet<Integer>(both)),
+					row(simple, u));
+		}
+	}
+
+	public void testRows()
+	{
+		check(OverlaySnapshot.forObserver("snapshot"));
+	}
+
+	public void testRowsOverThreads()
+	{
+		check(OverlaySnapshot.forObserver("parallel"));
+	}
+
+	/**
+	 * The neighbors of a node that is down are left out, but it stays a
+	 * neighbor of the others.
+	 */
+	public void testNodeDown()
+	{
+		Network.get(3).setFailState(Fallible.DOWN);
+		Network.get(SIZE - 1).setFailState(Fallible.DOWN);
+		check(OverlaySnapshot.forObserver("parallel"));
+	}
+
+	/**
+	 * The in-degrees counted without the in-neighbors match them, and the
+	 * in-neighbors derived after the counts are right.
+	 */
+	public void testInDegreesFirst()
+	{
+		OverlaySnapshot snapshot = OverlaySnapshot.forObserver("parallel");
+		List<List<Integer>> in = in();
+		int[] degrees = snapshot.getInDegrees();
+		for (int u = 0; u < SIZE; u++)
+			assertEquals(in.get(u).size(), degrees[u]);
+		check(snapshot);
+	}
+
+	/**
+	 * The snapshot is not taken again at the same time, and is at the next,
+	 * reusing the arrays of the last one.
+	 */
+	public void testTakenOncePerTime()
+	{
+		OverlaySnapshot snapshot = OverlaySnapshot.forObserver("parallel");
+		check(snapshot);
+		List<Integer> before = row(snapshot.getOut(), 7);
+		link(7, 8);
+		link(7, 9);
+		assertEquals(before, row(snapshot.getOut(), 7));
+		CommonState.setTime(1);
+		check(snapshot);
+	}
+
+}
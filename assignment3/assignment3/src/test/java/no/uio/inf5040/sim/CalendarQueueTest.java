@@ -0,0 +1,162 @@
+package no.uio.inf5040.sim;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import no.uio.inf5040.TestConfiguration;
+import peersim.edsim.Heap;
+import peersim.edsim.PriorityQ;
+
+/**
+ * Tests of CalendarQueue against the binary heap of PeerSim: fed the same
+ * additions and removals, both must give out the events in the same order
+ * of time and priority, and the calendar queue must keep the events of the
+ * same time and priority in the order they were added.
+ */
+public class CalendarQueueTest extends TestCase
+{
+	// A year of 16 buckets of 10 time units, and room for 16 events, so
+	// that the queues grow and events often lie years ahead
+	private static final long WIDTH = 10;
+	private static final int BUCKETS = 16;
+	private static final int SIZE = 16;
+
+	/**
+	 * An event as added, numbered in the order of the additions.
+	 */
+	private static class Added
+	{
+		final long time;
+		final long priority;
+		final int id;
+
+		Added(long time, long priority, int id)
+		{
+			this.time = time;
+			this.priority = priority;
+			this.id = id;
+		}
+	}
+
+	private CalendarQueue calendar;
+	private Heap heap;
+
+	// The pending events, in the order the calendar queue must give them out
+	private final List<Added> model = new ArrayList<Added>();
+
+	private int added;
+
+	protected void setUp()
+	{
+		TestConfiguration.set("queue.width", Long.toString(WIDTH));
+		TestConfiguration.set("queue.buckets", Integer.toString(BUCKETS));
+		TestConfiguration.set("queue.size", Integer.toString(SIZE));
+		calendar = new CalendarQueue("queue");
+		heap = new Heap("queue");
+		model.clear();
+		added = 0;
+	}
+
+	private void add(long time, long priority)
+	{
+		Added event = new Added(time, priority, added++);
+		calendar.add(time, event, null, (byte) 0, priority);
+		heap.add(time, event, null, (byte) 0, priority);
+		// After the events of the same time and priority added before it
+		int pos = model.size();
+		while (pos > 0 && (model.get(pos - 1).time > time
+				|| model.get(pos - 1).time == time && model.get(pos - 1).priority > priority))
+			pos--;
+		model.add(pos, event);
+	}
+
+	/**
+	 * Removes the first event of both queues and checks it against the model.
+	 * @return the time of the event
+	 */
+	private long removeFirst()
+	{
+		Added expected = model.remove(0);
+		PriorityQ.Event first = calendar.removeFirst();
+		assertEquals(expected.time, first.time);
+		assertEquals("event " + expected.id, expected.id, ((Added) first.event).id);
+		// The heap may give out the events of the same key in any order
+		first = heap.removeFirst();
+		assertEquals(expected.time, first.time);
+		assertEquals(expected.priority, ((Added) first.event).priority);
+		assertEquals(model.size(), calendar.size());
+		assertEquals(model.size(), heap.size());
+		return expected.time;
+	}
+
+	public void testEmpty()
+	{
+		assertEquals(0, calendar.size());
+		assertNull(calendar.removeFirst());
+		add(5, 0);
+		assertEquals(5, removeFirst());
+		assertNull(calendar.removeFirst());
+	}
+
+	public void testSameTimeInOrderAdded()
+	{
+		for (int i = 0; i < 3 * SIZE; i++)
+			add(7, i % 3);
+		for (int i = 0; i < 3 * SIZE; i++)
+			assertEquals(7, removeFirst());
+	}
+
+	/**
+	 * An event more than a year ahead shares its bucket with the events of
+	 * the current year, and must wait for its own year.
+	 */
+	public void testFarFuture()
+	{
+		long year = WIDTH * BUCKETS;
+		add(3 + 1000 * year, 0);
+		add(3 + year, 0);
+		add(3, 0);
+		add(4 + year, 1);
+		assertEquals(3, removeFirst());
+		assertEquals(3 + year, removeFirst());
+		add(3 + year, 2);
+		assertEquals(3 + year, removeFirst());
+		assertEquals(4 + year, removeFirst());
+		assertEquals(3 + 1000 * year, removeFirst());
+	}
+
+	/**
+	 * Bursts of additions and removals, as EDSimulator does them: an event
+	 * is never added before the last one removed, mostly within a few
+	 * buckets of it, often at the same time, and now and then years ahead.
+	 */
+	public void testRandomAgainstHeap()
+	{
+		Random random = new Random(1234567890);
+		long now = 0;
+		for (int burst = 0; burst < 2000; burst++){
+			int adds = random.nextInt(4 * SIZE);
+			for (int i = 0; i < adds; i++){
+				int kind = random.nextInt(10);
+				long time;
+				if (kind < 3)
+					time = now;
+				else if (kind < 9)
+					time = now + random.nextInt((int) (4 * WIDTH));
+				else
+					time = now + random.nextInt(1 << 20);
+				add(time, random.nextInt(4));
+			}
+			int removes = random.nextInt(4 * SIZE);
+			for (int i = 0; i < removes && !model.isEmpty(); i++)
+				now = removeFirst();
+		}
+		while (!model.isEmpty())
+			removeFirst();
+		assertNull(calendar.removeFirst());
+		assertEquals(0, heap.size());
+	}
+
+}
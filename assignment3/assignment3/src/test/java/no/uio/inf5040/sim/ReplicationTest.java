@@ -0,0 +1,174 @@
+package no.uio.inf5040.sim;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of Replication against a two-pass computation of the mean and the
+ * variance of every value over the runs, and of the half-width of the
+ * confidence interval from the Student t quantiles.
+ */
+public class ReplicationTest extends TestCase
+{
+	// The relative error allowed
+	private static final double EPSILON = 1e-6;
+
+	private File output;
+
+	protected void setUp() throws IOException
+	{
+		output = File.createTempFile("replication", ".txt");
+	}
+
+	protected void tearDown()
+	{
+		output.delete();
+	}
+
+	private static File run(String text) throws IOException
+	{
+		File file = File.createTempFile("run", ".txt");
+		Writer out = new FileWriter(file);
+		try {
+			out.write(text);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	/**
+	 * @return the lines of the result file after its header, split into words
+	 */
+	private List<String[]> result() throws IOException
+	{
+		List<String[]> lines = new ArrayList<String[]>();
+		BufferedReader in = new BufferedReader(new FileReader(output));
+		try {
+			String header = in.readLine();
+			assertTrue(header, header.startsWith("# mean and 95% confidence half-width"));
+			String s;
+			while ((s = in.readLine()) != null)
+				lines.add(s.length() == 0 ? new String[0] : s.split(" "));
+		} finally {
+			in.close();
+		}
+		return lines;
+	}
+
+	private static double mean(double[] xs)
+	{
+		double sum = 0;
+		for (double x : xs)
+			sum += x;
+		return sum / xs.length;
+	}
+
+	/**
+	 * @return the sample variance, from the deviations to the mean
+	 */
+	private static double variance(double[] xs)
+	{
+		double mean = mean(xs);
+		double sum = 0;
+		for (double x : xs)
+			sum += (x - mean) * (x - mean);
+		return sum / (xs.length - 1);
+	}
+
+	private static void assertClose(double expected, double actual)
+	{
+		assertEquals(expected, actual, EPSILON * Math.max(1, Math.abs(expected)));
+	}
+
+	private static void assertMerged(double[] xs, double t, String mean, String half)
+	{
+		assertClose(mean(xs), Double.parseDouble(mean));
+		assertClose(xs.length < 2 ? 0 : t * Math.sqrt(variance(xs) / xs.length),
+				Double.parseDouble(half));
+	}
+
+	/**
+	 * Three runs of two lines, with the words of the first one kept.
+	 */
+	public void testKnownSeries() throws IOException
+	{
+		Replication replication = new Replication(output, 3);
+		replication.add(run("degree 1 2\n10 20\n"));
+		replication.add(run("degree 3 2\n12 26\n"));
+		assertTrue(output.length() == 0);
+		replication.add(run("degree 8 2\n14 29\n"));
+
+		List<String[]> lines = result();
+		assertEquals(2, lines.size());
+		String[] first = lines.get(0);
+		assertEquals(5, first.length);
+		assertEquals("degree", first[0]);
+		// 4.303 for 2 degrees of freedom
+		assertMerged(new double[] { 1, 3, 8 }, 4.303, first[1], first[2]);
+		assertMerged(new double[] { 2, 2, 2 }, 4.303, first[3], first[4]);
+		String[] second = lines.get(1);
+		assertMerged(new double[] { 10, 12, 14 }, 4.303, second[0], second[1]);
+		assertMerged(new double[] { 20, 26, 29 }, 4.303, second[2], second[3]);
+	}
+
+	/**
+	 * The values past the end of a shorter series count as zeros, whether
+	 * the shorter run comes first or not.
+	 */
+	public void testMissingValuesAreZeros() throws IOException
+	{
+		Replication replication = new Replication(output, 4);
+		replication.add(run("5\n"));
+		replication.add(run("7 1\n3\n"));
+		replication.add(run("6\n"));
+		replication.add(run("9 4\n2 8\n"));
+
+		List<String[]> lines = result();
+		assertEquals(2, lines.size());
+		// 3.182 for 3 degrees of freedom
+		assertMerged(new double[] { 5, 7, 6, 9 }, 3.182, lines.get(0)[0], lines.get(0)[1]);
+		assertMerged(new double[] { 0, 1, 0, 4 }, 3.182, lines.get(0)[2], lines.get(0)[3]);
+		assertMerged(new double[] { 0, 3, 0, 2 }, 3.182, lines.get(1)[0], lines.get(1)[1]);
+		assertMerged(new double[] { 0, 0, 0, 8 }, 3.182, lines.get(1)[2], lines.get(1)[3]);
+	}
+
+	/**
+	 * Many runs of values with a large mean and a small spread, where the sum
+	 * of the squares loses the variance and Welford keeps it, taking the
+	 * normal quantile past 30 degrees of freedom.
+	 */
+	public void testManyRuns() throws IOException
+	{
+		Random random = new Random(1234567890);
+		for (int runs : new int[] { 1, 2, 31, 32, 100 }){
+			double[] xs = new double[runs];
+			Replication replication = new Replication(output, runs);
+			for (int r = 0; r < runs; r++){
+				xs[r] = 1e9 + random.nextGaussian();
+				replication.add(run(Double.toString(xs[r]) + "\n"));
+			}
+			double t = runs == 1 ? 0 : runs == 2 ? 12.706 : runs == 31 ? 2.042 : 1.96;
+			String[] line = result().get(0);
+			assertMerged(xs, t, line[0], line[1]);
+		}
+	}
+
+	public void testFailedRunWritesNothing() throws IOException
+	{
+		Replication replication = new Replication(output, 2);
+		replication.fail();
+		replication.add(run("1\n"));
+		assertEquals(0, output.length());
+	}
+
+}